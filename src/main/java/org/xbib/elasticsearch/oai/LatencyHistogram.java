@@ -0,0 +1,77 @@
+package org.xbib.elasticsearch.oai;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free log-linear histogram of durations in microseconds, in the spirit of HDR histograms.
+ * Each power of two is split into 16 linear buckets, so a percentile is off by at most 1/16
+ * of its value. Durations up to about 12 days are recorded, longer ones count into the last bucket.
+ */
+public class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 4;
+
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final static int MAX_EXPONENT = 40;
+
+    private final static int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+    }
+
+    public void record(long micros) {
+        counts.incrementAndGet(bucketOf(Math.max(0L, micros)));
+    }
+
+    /**
+     * The value at a percentile, as the upper bound of the bucket that holds it.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the value in microseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
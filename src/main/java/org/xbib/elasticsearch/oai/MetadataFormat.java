@@ -0,0 +1,83 @@
+package org.xbib.elasticsearch.oai;
+
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A metadata format offered by the repository, configured under {@code oai.metadata_formats.<prefix>}.
+ */
+public class MetadataFormat {
+
+    public final static String OAI_DC = "oai_dc";
+
+    private final static String[] DC_ELEMENTS = {
+            "title", "creator", "subject", "description", "publisher", "contributor", "date", "type",
+            "format", "identifier", "source", "language", "relation", "coverage", "rights"
+    };
+
+    private final String prefix;
+
+    private final String schema;
+
+    private final String namespace;
+
+    private final String stylesheet;
+
+    private final String root;
+
+    private final Map<String, String> fields;
+
+    public MetadataFormat(String prefix, Settings settings) {
+        this.prefix = prefix;
+        this.schema = settings.get("schema");
+        this.namespace = settings.get("namespace");
+        this.stylesheet = settings.get("stylesheet");
+        this.root = settings.get("root");
+        this.fields = settings.getByPrefix("fields.").getAsMap();
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getSchema() {
+        return schema;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getStylesheet() {
+        return stylesheet;
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * The mapping of source fields to metadata elements, both as qualified names.
+     */
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+    public static Map<String, MetadataFormat> of(Settings settings) {
+        Map<String, MetadataFormat> formats = new LinkedHashMap<>();
+        Settings.Builder oaiDc = Settings.settingsBuilder()
+                .put("schema", "http://www.openarchives.org/OAI/2.0/oai_dc.xsd")
+                .put("namespace", "http://www.openarchives.org/OAI/2.0/oai_dc/")
+                .put("root", "oai_dc:dc");
+        for (String element : DC_ELEMENTS) {
+            oaiDc.put("fields.dc:" + element, "dc:" + element);
+        }
+        formats.put(OAI_DC, new MetadataFormat(OAI_DC, oaiDc.build()));
+        for (Map.Entry<String, Settings> entry : settings.getGroups("oai.metadata_formats").entrySet()) {
+            formats.put(entry.getKey(), new MetadataFormat(entry.getKey(), entry.getValue()));
+        }
+        return formats;
+    }
+}
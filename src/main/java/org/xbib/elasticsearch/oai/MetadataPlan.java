@@ -0,0 +1,163 @@
+package org.xbib.elasticsearch.oai;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.xbib.xml.XSI;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A compiled plan that renders a stored source as metadata of a format, configured by
+ * {@code oai.metadata_formats.<prefix>.root} and {@code oai.metadata_formats.<prefix>.fields.<field>}.
+ *
+ * Element names and namespaces are resolved once when the plan is compiled. Rendering walks the
+ * token stream of the source and writes mapped fields directly: every scalar value of a mapped top-level
+ * field, also inside arrays and objects, becomes one element. Unmapped fields are skipped unparsed.
+ */
+public class MetadataPlan {
+
+    private final static String SCHEMA_LOCATION = "schemaLocation";
+
+    private final QName root;
+
+    private final Map<String, String> namespaces;
+
+    private final String schemaLocation;
+
+    private final Map<String, QName> elements;
+
+    private MetadataPlan(QName root, Map<String, String> namespaces, String schemaLocation,
+                         Map<String, QName> elements) {
+        this.root = root;
+        this.namespaces = namespaces;
+        this.schemaLocation = schemaLocation;
+        this.elements = elements;
+    }
+
+    /**
+     * Compile the plans of all metadata formats that have a root element and field mappings.
+     *
+     * @param metadataFormats the metadata formats
+     * @param namespaceContext the namespace context for resolving prefixes
+     * @return the plans by metadata prefix
+     */
+    public static Map<String, MetadataPlan> of(Collection<MetadataFormat> metadataFormats,
+                                               NamespaceContext namespaceContext) {
+        Map<String, MetadataPlan> plans = new HashMap<>();
+        for (MetadataFormat metadataFormat : metadataFormats) {
+            if (metadataFormat.getRoot() != null && !metadataFormat.getFields().isEmpty()) {
+                plans.put(metadataFormat.getPrefix(), compile(metadataFormat, namespaceContext));
+            }
+        }
+        return plans;
+    }
+
+    public static MetadataPlan compile(MetadataFormat metadataFormat, NamespaceContext namespaceContext) {
+        Map<String, String> namespaces = new LinkedHashMap<>();
+        QName root = qname(metadataFormat, metadataFormat.getRoot(), metadataFormat.getNamespace(),
+                namespaceContext, namespaces);
+        Map<String, QName> elements = new HashMap<>();
+        for (Map.Entry<String, String> entry : metadataFormat.getFields().entrySet()) {
+            elements.put(entry.getKey(), qname(metadataFormat, entry.getValue(), null, namespaceContext, namespaces));
+        }
+        String schemaLocation = metadataFormat.getNamespace() != null && metadataFormat.getSchema() != null ?
+                metadataFormat.getNamespace() + " " + metadataFormat.getSchema() : null;
+        return new MetadataPlan(root, namespaces, schemaLocation, elements);
+    }
+
+    /**
+     * Render the source. The writer is expected in a position where an element may start.
+     *
+     * @param writer the XML writer
+     * @param source the stored source
+     * @throws IOException if the source can not be parsed
+     * @throws XMLStreamException if the metadata can not be written
+     */
+    public void write(XMLStreamWriter writer, BytesReference source) throws IOException, XMLStreamException {
+        writer.writeStartElement(root.prefix, root.localName, root.namespaceURI);
+        for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+            writer.writeNamespace(namespace.getKey(), namespace.getValue());
+        }
+        if (schemaLocation != null) {
+            writer.writeNamespace(XSI.NS_PREFIX, XSI.NS_URI);
+            writer.writeAttribute(XSI.NS_PREFIX, XSI.NS_URI, SCHEMA_LOCATION, schemaLocation);
+        }
+        try (XContentParser parser = XContentHelper.createParser(source)) {
+            if (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+                QName element = null;
+                XContentParser.Token token;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        element = elements.get(parser.currentName());
+                    } else if (element != null) {
+                        value(writer, parser, token, element);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        }
+        writer.writeEndElement();
+    }
+
+    private static void value(XMLStreamWriter writer, XContentParser parser, XContentParser.Token token,
+                              QName element) throws IOException, XMLStreamException {
+        if (token == XContentParser.Token.START_ARRAY) {
+            while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                value(writer, parser, token, element);
+            }
+        } else if (token == XContentParser.Token.START_OBJECT) {
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token != XContentParser.Token.FIELD_NAME) {
+                    value(writer, parser, token, element);
+                }
+            }
+        } else if (token != XContentParser.Token.VALUE_NULL) {
+            writer.writeStartElement(element.prefix, element.localName, element.namespaceURI);
+            writer.writeCharacters(parser.textCharacters(), parser.textOffset(), parser.textLength());
+            writer.writeEndElement();
+        }
+    }
+
+    private static QName qname(MetadataFormat metadataFormat, String name, String namespaceURI,
+                               NamespaceContext namespaceContext, Map<String, String> namespaces) {
+        int pos = name.indexOf(':');
+        String prefix = pos > 0 ? name.substring(0, pos) : "";
+        String uri = namespaceURI != null ? namespaceURI : namespaceContext.getNamespaceURI(prefix);
+        if (uri == null || uri.isEmpty()) {
+            throw new ElasticsearchException("unknown namespace of {} in metadata format {}",
+                    name, metadataFormat.getPrefix());
+        }
+        String current = namespaces.get(prefix);
+        if (current != null && !current.equals(uri)) {
+            throw new ElasticsearchException("prefix {} is bound to {} and {} in metadata format {}",
+                    prefix, current, uri, metadataFormat.getPrefix());
+        }
+        namespaces.put(prefix, uri);
+        return new QName(prefix, name.substring(pos + 1), uri);
+    }
+
+    private static class QName {
+
+        private final String prefix;
+
+        private final String localName;
+
+        private final String namespaceURI;
+
+        QName(String prefix, String localName, String namespaceURI) {
+            this.prefix = prefix;
+            this.localName = localName;
+            this.namespaceURI = namespaceURI;
+        }
+    }
+}
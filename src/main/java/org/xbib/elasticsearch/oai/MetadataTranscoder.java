@@ -0,0 +1,103 @@
+package org.xbib.elasticsearch.oai;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.xbib.iri.namespace.IRINamespaceContext;
+import org.xml.sax.InputSource;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Transcodes stored records into the metadata formats that are configured with a stylesheet
+ * under {@code oai.metadata_formats.<prefix>.stylesheet}, relative to the config directory.
+ *
+ * Stylesheets are compiled once into templates when the server starts. Each thread keeps its own
+ * transformer per format, because transformers are not thread safe but are reusable. The source
+ * is streamed into the transformer as SAX events, and the result is streamed into the response.
+ */
+public class MetadataTranscoder {
+
+    private final Map<String, Templates> templates;
+
+    private final NamespaceContext namespaceContext;
+
+    private final ThreadLocal<Map<String, Transformer>> transformers;
+
+    public MetadataTranscoder(Settings settings, Collection<MetadataFormat> metadataFormats) {
+        this.templates = new HashMap<>();
+        this.namespaceContext = IRINamespaceContext.newInstance();
+        this.transformers = ThreadLocal.withInitial(HashMap::new);
+        Environment environment = new Environment(settings);
+        TransformerFactory transformerFactory = TransformerFactory.newInstance();
+        try {
+            transformerFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (TransformerConfigurationException e) {
+            throw new ElasticsearchException("transformer factory does not support secure processing", e);
+        }
+        for (MetadataFormat metadataFormat : metadataFormats) {
+            if (metadataFormat.getStylesheet() == null) {
+                continue;
+            }
+            Path path = environment.configFile().resolve(metadataFormat.getStylesheet());
+            try {
+                templates.put(metadataFormat.getPrefix(), transformerFactory.newTemplates(new StreamSource(path.toFile())));
+            } catch (TransformerConfigurationException e) {
+                throw new ElasticsearchException("can not compile stylesheet {} for metadata prefix {}", e,
+                        path, metadataFormat.getPrefix());
+            }
+        }
+    }
+
+    public boolean canTranscode(String metadataPrefix) {
+        return metadataPrefix != null && templates.containsKey(metadataPrefix);
+    }
+
+    /**
+     * Transform a stored source into a metadata format and write the result, without XML declaration.
+     *
+     * @param metadataPrefix the metadata prefix
+     * @param source the stored source
+     * @param out the output stream
+     * @throws TransformerException if the transformation fails
+     */
+    public void transcode(String metadataPrefix, BytesReference source, OutputStream out) throws TransformerException {
+        Transformer transformer = transformer(metadataPrefix);
+        try {
+            transformer.transform(new SAXSource(new SourceXMLReader(source, namespaceContext), new InputSource()),
+                    new StreamResult(out));
+        } catch (TransformerException e) {
+            // the transformer may be left in an unusable state
+            transformers.get().remove(metadataPrefix);
+            throw e;
+        }
+    }
+
+    private Transformer transformer(String metadataPrefix) throws TransformerConfigurationException {
+        Map<String, Transformer> map = transformers.get();
+        Transformer transformer = map.get(metadataPrefix);
+        if (transformer == null) {
+            transformer = templates.get(metadataPrefix).newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            map.put(metadataPrefix, transformer);
+        }
+        return transformer;
+    }
+}
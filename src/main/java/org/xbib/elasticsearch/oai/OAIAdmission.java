@@ -0,0 +1,156 @@
+package org.xbib.elasticsearch.oai;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admission control for OAI requests. Each client may have a limited number of requests in flight,
+ * configured by {@code oai.admission.per_client}. A request holds its permit until its response is sent.
+ *
+ * Behind a load balancer, the client is taken from a header like {@code X-Forwarded-For}, configured by
+ * {@code oai.admission.client_header}, if the request comes from one of {@code oai.admission.trusted_proxies}.
+ *
+ * Dumps build their whole body in memory, so only {@code oai.dump.concurrency} dumps, by default one,
+ * may run on a node at a time, whatever the client.
+ */
+public class OAIAdmission {
+
+    public final static String THREAD_POOL = "oai";
+
+    private final int perClient;
+
+    private final TimeValue retryAfter;
+
+    private final String clientHeader;
+
+    private final Set<String> trustedProxies;
+
+    private final ConcurrentMap<String, Integer> inFlight;
+
+    private final Semaphore dumps;
+
+    public OAIAdmission(Settings settings) {
+        this.perClient = settings.getAsInt("oai.admission.per_client", 2);
+        this.retryAfter = settings.getAsTime("oai.admission.retry_after", TimeValue.timeValueSeconds(10));
+        this.clientHeader = settings.get("oai.admission.client_header");
+        this.trustedProxies = new HashSet<>(Arrays.asList(settings.getAsArray("oai.admission.trusted_proxies")));
+        this.inFlight = new ConcurrentHashMap<>();
+        this.dumps = new Semaphore(settings.getAsInt("oai.dump.concurrency", 1));
+    }
+
+    /**
+     * The delay a rejected client should wait before it retries.
+     */
+    public TimeValue getRetryAfter() {
+        return retryAfter;
+    }
+
+    /**
+     * The client of a request: the remote address, or for requests from a trusted proxy, the rightmost
+     * address in the client header that is not a trusted proxy itself.
+     *
+     * @param request the request
+     * @return the client key
+     */
+    public String clientOf(RestRequest request) {
+        SocketAddress address = request.getRemoteAddress();
+        String remote = address instanceof InetSocketAddress ?
+                ((InetSocketAddress) address).getAddress().getHostAddress() : String.valueOf(address);
+        if (clientHeader == null || !trustedProxies.contains(remote)) {
+            return remote;
+        }
+        String header = request.header(clientHeader);
+        if (header == null) {
+            return remote;
+        }
+        String[] hops = header.split(",");
+        for (int i = hops.length - 1; i >= 0; i--) {
+            String hop = hops[i].trim();
+            if (!hop.isEmpty() && !trustedProxies.contains(hop)) {
+                return hop;
+            }
+        }
+        return remote;
+    }
+
+    public boolean tryAcquire(String client) {
+        final boolean[] admitted = new boolean[1];
+        inFlight.compute(client, (k, n) -> {
+            int count = n != null ? n : 0;
+            if (count >= perClient) {
+                return n;
+            }
+            admitted[0] = true;
+            return count + 1;
+        });
+        return admitted[0];
+    }
+
+    public void release(String client) {
+        inFlight.computeIfPresent(client, (k, n) -> n > 1 ? n - 1 : null);
+    }
+
+    public int inFlight() {
+        int count = 0;
+        for (Integer n : inFlight.values()) {
+            count += n;
+        }
+        return count;
+    }
+
+    public boolean tryAcquireDump() {
+        return dumps.tryAcquire();
+    }
+
+    /**
+     * A channel that releases the dump permit with the first response sent on it.
+     *
+     * @param channel the channel
+     * @return the releasing channel
+     */
+    public RestChannel releasingDump(final RestChannel channel) {
+        final AtomicBoolean released = new AtomicBoolean();
+        return new RestChannel(channel.request(), channel.detailedErrorsEnabled()) {
+            @Override
+            public void sendResponse(RestResponse response) {
+                if (released.compareAndSet(false, true)) {
+                    dumps.release();
+                }
+                channel.sendResponse(response);
+            }
+        };
+    }
+
+    /**
+     * A channel that releases the permit of a client with the first response sent on it.
+     *
+     * @param channel the channel
+     * @param client the client
+     * @return the releasing channel
+     */
+    public RestChannel releasing(final RestChannel channel, final String client) {
+        final AtomicBoolean released = new AtomicBoolean();
+        return new RestChannel(channel.request(), channel.detailedErrorsEnabled()) {
+            @Override
+            public void sendResponse(RestResponse response) {
+                if (released.compareAndSet(false, true)) {
+                    release(client);
+                }
+                channel.sendResponse(response);
+            }
+        };
+    }
+}
@@ -0,0 +1,220 @@
+package org.xbib.elasticsearch.oai;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The position of a harvester in a list request. Pages are read by sort values
+ * ({@code xbib:timestamp}, {@code xbib:sequence}, {@code _uid}) of the last record delivered, so the
+ * cost of reading a page does not depend on how deep the harvester is.
+ *
+ * Records with equal timestamp and sequence are told apart by the uids delivered with these sort values,
+ * which are excluded by a terms filter. The sequence is a hash of the identifier, so there is usually
+ * only one such uid. Records without sequence share the missing value and are all carried along.
+ */
+public class OAICursor {
+
+    /**
+     * The sequence sort value of records without sequence field.
+     */
+    public final static long MISSING_SEQUENCE = Long.MIN_VALUE;
+
+    private String verb;
+
+    private String index;
+
+    private String type;
+
+    private Date from;
+
+    private Date until;
+
+    private String set;
+
+    private String metadataPrefix;
+
+    private int size;
+
+    private long position;
+
+    private int depth;
+
+    private long lastTimestamp;
+
+    private long lastSequence;
+
+    private List<String> lastUids;
+
+    public OAICursor setVerb(String verb) {
+        this.verb = verb;
+        return this;
+    }
+
+    public String getVerb() {
+        return verb;
+    }
+
+    public OAICursor setIndex(String index) {
+        this.index = index;
+        return this;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public OAICursor setType(String type) {
+        this.type = type;
+        return this;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public OAICursor setFrom(Date from) {
+        this.from = from;
+        return this;
+    }
+
+    public Date getFrom() {
+        return from;
+    }
+
+    public OAICursor setUntil(Date until) {
+        this.until = until;
+        return this;
+    }
+
+    public Date getUntil() {
+        return until;
+    }
+
+    public OAICursor setSet(String set) {
+        this.set = set;
+        return this;
+    }
+
+    public String getSet() {
+        return set;
+    }
+
+    public OAICursor setMetadataPrefix(String metadataPrefix) {
+        this.metadataPrefix = metadataPrefix;
+        return this;
+    }
+
+    public String getMetadataPrefix() {
+        return metadataPrefix;
+    }
+
+    public OAICursor setSize(int size) {
+        this.size = size;
+        return this;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * The number of pages delivered before this page.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * The uids of the delivered records with the timestamp and sequence of the last record, in delivery order.
+     */
+    public List<String> getLastUids() {
+        return lastUids;
+    }
+
+    public String getLastUid() {
+        return lastUids != null ? lastUids.get(lastUids.size() - 1) : null;
+    }
+
+    public boolean isResumed() {
+        return lastUids != null;
+    }
+
+    /**
+     * Create the cursor for the page following the given last record, for records without sequence
+     * whose timestamp is not shared by the records before.
+     *
+     * @param count the number of records delivered on the current page
+     * @param timestamp the timestamp sort value of the last record
+     * @param uid the uid sort value of the last record
+     * @return the cursor of the next page
+     */
+    public OAICursor next(int count, long timestamp, String uid) {
+        return next(count, timestamp, MISSING_SEQUENCE, Collections.singletonList(uid));
+    }
+
+    /**
+     * Create the cursor for the page following the given last records.
+     *
+     * @param count the number of records delivered on the current page
+     * @param timestamp the timestamp sort value of the last record
+     * @param sequence the sequence sort value of the last record
+     * @param uids the uids of the records at the end of the current page with this timestamp and sequence,
+     *             in delivery order
+     * @return the cursor of the next page
+     */
+    public OAICursor next(int count, long timestamp, long sequence, List<String> uids) {
+        List<String> list = uids;
+        if (uids.size() == count && isResumed() && timestamp == lastTimestamp && sequence == lastSequence) {
+            // the whole page continues the records of the previous page with these sort values
+            list = new ArrayList<>(lastUids.size() + uids.size());
+            list.addAll(lastUids);
+            list.addAll(uids);
+        }
+        return new OAICursor()
+                .setVerb(verb)
+                .setIndex(index)
+                .setType(type)
+                .setFrom(from)
+                .setUntil(until)
+                .setSet(set)
+                .setMetadataPrefix(metadataPrefix)
+                .setSize(size)
+                .setDepth(depth + 1)
+                .setLast(position + count, timestamp, sequence, list);
+    }
+
+    OAICursor setDepth(int depth) {
+        this.depth = depth;
+        return this;
+    }
+
+    OAICursor setLast(long position, long lastTimestamp, long lastSequence, List<String> lastUids) {
+        this.position = position;
+        this.lastTimestamp = lastTimestamp;
+        this.lastSequence = lastSequence;
+        this.lastUids = lastUids;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "[verb=" + verb + ",index=" + index + ",type=" + type + ",from=" + from + ",until=" + until
+                + ",set=" + set + ",metadataPrefix=" + metadataPrefix + ",size=" + size
+                + ",position=" + position + ",depth=" + depth
+                + ",lastTimestamp=" + lastTimestamp + ",lastSequence=" + lastSequence + ",lastUids=" + lastUids + "]";
+    }
+}
@@ -3,25 +3,156 @@ package org.xbib.elasticsearch.oai;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsAction;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsRequestBuilder;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
+import org.xbib.iri.namespace.IRINamespaceContext;
 import org.xbib.oai.exceptions.OAIException;
-import org.xbib.oai.server.ServerOAIRequest;
 import org.xbib.util.DateUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class OAIServer extends AbstractLifecycleComponent<OAIServer>  {
 
+    public final static String TIMESTAMP_FIELD = "xbib:timestamp";
+
+    /**
+     * A numeric field with a hash of the identifier, the tie-breaker of records with the same timestamp.
+     */
+    public final static String SEQUENCE_FIELD = "xbib:sequence";
+
+    public final static String UID_FIELD = "_uid";
+
+    public final static String METADATA_FIELD = "xbib:metadata";
+
+    public final static String METADATA_PREFIX_FIELD = "xbib:metadataPrefix";
+
+    public final static String EARLIEST_DATESTAMP = "earliestDatestamp";
+
+    public final static String SETS = "sets";
+
+    /**
+     * The suffix of the side index that holds the tombstones of deleted records of an index.
+     */
+    public final static String TOMBSTONE_SUFFIX = "_deleted";
+
+    private final static int MAX_REFRESH_COUNTS = 1024;
+
     private final Logger logger = LogManager.getLogger(OAIServer.class);
 
+    private final int listRecordsSize;
+
+    private final int listIdentifiersSize;
+
+    private final String setField;
+
+    private final String deletedRecord;
+
+    private final ResumptionTokenCodec tokenCodec;
+
+    private final RecordCache recordCache;
+
+    private final Map<String, MetadataFormat> metadataFormats;
+
+    private final MetadataTranscoder metadataTranscoder;
+
+    private final Map<String, MetadataPlan> metadataPlans;
+
+    private final PageCache responseCache;
+
+    private final PageCache pageCache;
+
+    private final Map<String, CachedRefreshCounts> refreshCountsCache;
+
+    private final long refreshCountsTtlNanos;
+
+    private final ConcurrentMap<String, PendingPage> pendingPages;
+
+    private final TimewindowIndexResolver indexResolver;
+
+    private final OAIAdmission admission;
+
+    private final OAIStats stats;
+
+    private final PageSizer pageSizer;
+
+    private final Client client;
+
     @Inject
-    public OAIServer(Settings settings) {
+    public OAIServer(Settings settings, Client client) {
         super(settings);
+        this.client = client;
+        this.listRecordsSize = settings.getAsInt("oai.listrecords.size", 100);
+        this.listIdentifiersSize = settings.getAsInt("oai.listidentifiers.size", 1000);
+        this.setField = settings.get("oai.set.field", "xbib:set");
+        this.deletedRecord = settings.get("oai.deleted_record", "transient");
+        String secret = settings.get("oai.token.secret");
+        byte[] key;
+        if (Strings.hasText(secret)) {
+            key = secret.getBytes(StandardCharsets.UTF_8);
+        } else {
+            // the cluster name is public, a token signed with it could be forged
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            logger.warn("oai.token.secret is not set, resumption tokens are signed with a random secret of this node "
+                    + "and are rejected by other nodes and after a restart");
+        }
+        this.tokenCodec = new ResumptionTokenCodec(key);
+        this.recordCache = new RecordCache(settings.getAsBytesSize("oai.record_cache.size",
+                new ByteSizeValue(32, ByteSizeUnit.MB)).bytes());
+        this.metadataFormats = MetadataFormat.of(settings);
+        this.metadataTranscoder = new MetadataTranscoder(settings, metadataFormats.values());
+        this.metadataPlans = MetadataPlan.of(metadataFormats.values(), IRINamespaceContext.newInstance());
+        this.responseCache = new PageCache(settings.getAsBytesSize("oai.response_cache.size",
+                new ByteSizeValue(1, ByteSizeUnit.MB)).bytes(),
+                settings.getAsTime("oai.response_cache.ttl", TimeValue.timeValueMinutes(10)).millis());
+        this.pageCache = new PageCache(settings.getAsBytesSize("oai.page_cache.size",
+                new ByteSizeValue(16, ByteSizeUnit.MB)).bytes(),
+                settings.getAsTime("oai.page_cache.ttl", TimeValue.timeValueSeconds(5)).millis());
+        this.pendingPages = new ConcurrentHashMap<>();
+        this.refreshCountsCache = new LinkedHashMap<>();
+        this.refreshCountsTtlNanos = settings.getAsTime("oai.refresh_counts.ttl",
+                TimeValue.timeValueSeconds(1)).nanos();
+        this.indexResolver = new TimewindowIndexResolver(client);
+        this.admission = new OAIAdmission(settings);
+        this.stats = new OAIStats();
+        this.pageSizer = new PageSizer(settings, listRecordsSize);
     }
 
     @Override
@@ -35,66 +166,563 @@ public class OAIServer extends AbstractLifecycleComponent<OAIServer>  {
 
     @Override
     protected void doClose() throws ElasticsearchException {
-
+        recordCache.clear();
+        responseCache.clear();
+        pageCache.clear();
+        synchronized (refreshCountsCache) {
+            refreshCountsCache.clear();
+        }
+        indexResolver.clear();
+        stats.clear();
+        pageSizer.clear();
     }
 
     public String verbOf(RestRequest request) {
-        return request.hasParam("verb") ? request.param("verb") : "identify";
+        return request.hasParam("verb") ? request.param("verb") : "Identify";
+    }
+
+    public Map<String, MetadataFormat> getMetadataFormats() {
+        return metadataFormats;
+    }
+
+    public MetadataTranscoder getMetadataTranscoder() {
+        return metadataTranscoder;
+    }
+
+    public PageSizer getPageSizer() {
+        return pageSizer;
+    }
+
+    public OAIStats getStats() {
+        return stats;
+    }
+
+    public OAIAdmission getAdmission() {
+        return admission;
+    }
+
+    public Map<String, MetadataPlan> getMetadataPlans() {
+        return metadataPlans;
+    }
+
+    /**
+     * Check if records can be disseminated in a metadata format.
+     *
+     * @param metadataPrefix the metadata prefix
+     * @throws OAIServerException if the metadata prefix is missing or unknown
+     */
+    public void checkMetadataPrefix(String metadataPrefix) throws OAIServerException {
+        if (metadataPrefix == null) {
+            throw new OAIServerException("badArgument", "missing metadataPrefix");
+        }
+        if (!metadataFormats.containsKey(metadataPrefix)) {
+            throw new OAIServerException("cannotDisseminateFormat", "unknown metadataPrefix: " + metadataPrefix);
+        }
+    }
+
+    public int getListRecordsSize() {
+        return listRecordsSize;
+    }
+
+    public int getListIdentifiersSize() {
+        return listIdentifiersSize;
+    }
+
+    public String getSetField() {
+        return setField;
+    }
+
+    /**
+     * The support for deleted records as declared by Identify: {@code no}, {@code transient} or {@code persistent}.
+     */
+    public String getDeletedRecord() {
+        return deletedRecord;
+    }
+
+    /**
+     * The tombstone index of an index.
+     */
+    public static String tombstoneIndexOf(String index) {
+        return index + TOMBSTONE_SUFFIX;
+    }
+
+    /**
+     * Check if a concrete index is a tombstone index, so its hits are deleted records.
+     */
+    public static boolean isTombstoneIndex(String index) {
+        return index != null && index.endsWith(TOMBSTONE_SUFFIX);
+    }
+
+    public ResumptionTokenCodec getTokenCodec() {
+        return tokenCodec;
+    }
+
+    public RecordCache getRecordCache() {
+        return recordCache;
+    }
+
+    /**
+     * The earliest datestamp of the repository, as a min aggregation.
+     */
+    public void identify(String index, String type, SearchRequestBuilder searchRequestBuilder) {
+        setIndexAndType(searchRequestBuilder, index, type);
+        searchRequestBuilder
+                .setSize(0)
+                .addAggregation(AggregationBuilders.min(EARLIEST_DATESTAMP).field(TIMESTAMP_FIELD));
+    }
+
+    /**
+     * All set specs of the repository, as a terms aggregation.
+     */
+    public void listSets(String index, String type, SearchRequestBuilder searchRequestBuilder) {
+        setIndexAndType(searchRequestBuilder, index, type);
+        searchRequestBuilder
+                .setSize(0)
+                .addAggregation(AggregationBuilders.terms(SETS).field(setField).size(0));
+    }
+
+    /**
+     * Answer from the response cache while the index has not changed, otherwise let the loader
+     * render a new response and cache it. The cache is bounded in bytes and time, and the change marker
+     * is part of the cache key, so responses of former states of the index just expire.
+     *
+     * @param refreshCounts the refresh counts of the index
+     * @param key the cache key of the response
+     * @param loader the loader for a new response
+     * @param listener the listener for the response
+     */
+    public void cachedResponse(Map<String, Long> refreshCounts, final String key, final ResponseLoader loader,
+                               final ActionListener<BytesReference> listener) {
+        final String markedKey = key + "/" + changeMarker(refreshCounts);
+        BytesReference cachedResponse = responseCache.get(markedKey);
+        if (cachedResponse != null) {
+            listener.onResponse(cachedResponse);
+            return;
+        }
+        loader.load(new ActionListener<BytesReference>() {
+            @Override
+            public void onResponse(BytesReference content) {
+                responseCache.put(markedKey, content);
+                listener.onResponse(content);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * Answer a list page from the page cache, or join a search for the same page that is already
+     * in flight, so identical concurrent requests cost one search and one serialization.
+     * Otherwise let the loader render the page, and give it to all requests that joined meanwhile.
+     * The recycled pages of the rendered page are copied only if the page is cached or shared,
+     * a page for a single request is handed over as it is.
+     *
+     * @param key the key of the page, covering all arguments of the request and the state of the index
+     * @param loader the loader for the page
+     * @param listener the listener for the page
+     */
+    public void coalescedPage(final String key, final PageLoader loader, final PageListener listener) {
+        while (true) {
+            BytesReference page = pageCache.get(key);
+            if (page != null) {
+                listener.onResponse(page);
+                return;
+            }
+            PendingPage pendingPage = new PendingPage(listener);
+            PendingPage existing = pendingPages.putIfAbsent(key, pendingPage);
+            if (existing == null) {
+                load(key, pendingPage, loader);
+                return;
+            }
+            if (existing.join(listener)) {
+                return;
+            }
+            // the page was completed just now, look again
+        }
+    }
+
+    private void load(final String key, final PendingPage pendingPage, PageLoader loader) {
+        loader.load(new ActionListener<ReleasableBytesStreamOutput>() {
+            @Override
+            public void onResponse(ReleasableBytesStreamOutput out) {
+                boolean cached = pageCache.accepts(out.size());
+                BytesReference page = null;
+                if (cached) {
+                    page = copy(out);
+                    pageCache.put(key, page);
+                }
+                pendingPages.remove(key, pendingPage);
+                List<PageListener> listeners = pendingPage.complete();
+                if (!cached) {
+                    if (listeners.size() == 1) {
+                        listeners.get(0).onPage(out);
+                        return;
+                    }
+                    page = copy(out);
+                }
+                for (PageListener listener : listeners) {
+                    listener.onResponse(page);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                pendingPages.remove(key, pendingPage);
+                for (PageListener listener : pendingPage.complete()) {
+                    listener.onFailure(e);
+                }
+            }
+        });
     }
 
-    public void listRecords(final ServerOAIRequest request, SearchRequestBuilder searchRequestBuilder)
+    /**
+     * Copy recycled pages into a byte array that outlives them, and release them.
+     * A single page is not copied by toBytesArray(), so the copy is explicit.
+     */
+    private static BytesReference copy(ReleasableBytesStreamOutput out) {
+        try {
+            return out.bytes().copyBytesArray();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * A marker that changes whenever new content of an index becomes visible to searches.
+     * It consists of the concrete index names and their primary refresh counts.
+     *
+     * @param refreshCounts the refresh counts of the index
+     * @return the marker
+     */
+    public String changeMarker(Map<String, Long> refreshCounts) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : refreshCounts.entrySet()) {
+            sb.append(entry.getKey()).append(':').append(entry.getValue()).append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The primary refresh counts of the concrete indices behind an index or alias, sorted by index name.
+     * They are obtained from index statistics without executing a search. The tombstone index is
+     * included, if it exists, so new tombstones change the marker as well.
+     *
+     * The statistics are a broadcast to all shards, so the counts are kept for {@code oai.refresh_counts.ttl}
+     * (default 1s) and shared by the requests meanwhile. Only counts of existing indices are kept, and
+     * at most {@code MAX_REFRESH_COUNTS} of them.
+     *
+     * @param index the index or alias
+     * @param listener the listener for the refresh counts
+     */
+    public void refreshCounts(String index, final ActionListener<Map<String, Long>> listener) {
+        final String key = index != null ? index : "_all";
+        final long now = System.nanoTime();
+        synchronized (refreshCountsCache) {
+            CachedRefreshCounts cached = refreshCountsCache.get(key);
+            if (cached != null && now - cached.created <= refreshCountsTtlNanos) {
+                listener.onResponse(cached.refreshCounts);
+                return;
+            }
+        }
+        new IndicesStatsRequestBuilder(client, IndicesStatsAction.INSTANCE)
+                .setIndices(index != null ? new String[]{index, tombstoneIndexOf(index)} : new String[]{"_all"})
+                .setIndicesOptions(IndicesOptions.lenientExpandOpen())
+                .clear()
+                .setRefresh(true)
+                .execute(new ActionListener<IndicesStatsResponse>() {
+                    @Override
+                    public void onResponse(IndicesStatsResponse response) {
+                        Map<String, Long> refreshCounts = new TreeMap<>();
+                        for (IndexStats indexStats : response.getIndices().values()) {
+                            refreshCounts.put(indexStats.getIndex(), indexStats.getPrimaries().getRefresh().getTotal());
+                        }
+                        refreshCounts = Collections.unmodifiableMap(refreshCounts);
+                        if (!refreshCounts.isEmpty()) {
+                            synchronized (refreshCountsCache) {
+                                if (refreshCountsCache.size() >= MAX_REFRESH_COUNTS) {
+                                    refreshCountsCache.clear();
+                                }
+                                refreshCountsCache.put(key, new CachedRefreshCounts(refreshCounts, now));
+                            }
+                        }
+                        listener.onResponse(refreshCounts);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        listener.onFailure(e);
+                    }
+                });
+    }
+
+    /**
+     * Resolve the concrete time-window indices behind an index or alias that may hold records
+     * between from and until, including the tombstone index. Without a date range, the index is returned
+     * as it is, together with its tombstone index.
+     *
+     * @param refreshCounts the refresh counts of the index
+     * @param index the index or alias
+     * @param from the from date, or null
+     * @param until the until date, or null
+     * @param listener the listener for the concrete indices to search
+     */
+    public void resolveIndices(Map<String, Long> refreshCounts, String index, Date from, Date until,
+                               ActionListener<String[]> listener) {
+        if (index == null || (from == null && until == null)) {
+            listener.onResponse(index != null ? new String[]{index, tombstoneIndexOf(index)} : Strings.EMPTY_ARRAY);
+            return;
+        }
+        indexResolver.resolve(index, refreshCounts, from, until, listener);
+    }
+
+    /**
+     * Compute the validators for conditional requests: an entity tag over the change marker and the request.
+     * The change marker moves with every refresh of the index, so the tag changes with every change of the content.
+     *
+     * @param refreshCounts the refresh counts of the index
+     * @param request the canonical form of the request arguments
+     * @return the validators
+     */
+    public Validators validators(Map<String, Long> refreshCounts, String request) {
+        return new Validators(changeMarker(refreshCounts) + request);
+    }
+
+    /**
+     * Compute the validators of a GetRecord response: an entity tag over the version of the record
+     * and the request, so no refresh counts are needed.
+     *
+     * @param response the get response of the record or its tombstone
+     * @param request the canonical form of the request arguments
+     * @return the validators
+     */
+    public Validators validators(GetResponse response, String request) {
+        return new Validators(response.getIndex() + "/" + response.getType() + "/" + response.getId()
+                + ":" + response.getVersion() + ";" + request);
+    }
+
+    /**
+     * A realtime get by identifier. Without source, the response carries just the version,
+     * which is enough to look up the rendered record in the record cache. With source, the
+     * pre-rendered metadata block is loaded from the stored fields, if the feeder has stored one.
+     */
+    public void getRecord(String index, String type, String identifier, boolean withSource,
+                          GetRequestBuilder getRequestBuilder) throws OAIException {
+        if (identifier == null) {
+            throw new OAIServerException("badArgument", "missing identifier");
+        }
+        getRequestBuilder
+                .setIndex(index)
+                .setType(type != null ? type : "_all")
+                .setId(identifier)
+                .setRealtime(true)
+                .setFetchSource(withSource);
+        if (withSource) {
+            getRequestBuilder.setFields(METADATA_FIELD, METADATA_PREFIX_FIELD);
+        }
+        logger.debug("get record: index={} type={} identifier={}", index, type, identifier);
+    }
+
+    /**
+     * The tombstone of a deleted record, for GetRecord of an identifier that is not in the index.
+     */
+    public void getTombstone(String index, String type, String identifier, GetRequestBuilder getRequestBuilder) {
+        getRequestBuilder
+                .setIndex(tombstoneIndexOf(index))
+                .setType(type != null ? type : "_all")
+                .setId(identifier)
+                .setRealtime(true)
+                .setFetchSource(true);
+    }
+
+    public void listRecords(OAICursor cursor, SearchRequestBuilder searchRequestBuilder)
             throws OAIException {
-        String index = getIndexFrom(request);
-        String type = getTypeFrom(request);
-        Date dateFrom = request.getFrom();
-        Date dateUntil = request.getUntil();
-        if (dateFrom == null || dateUntil == null || dateFrom.before(dateUntil)) {
-            throw new OAIException("illegal date arguments");
-        }
-        String from = DateUtil.formatDateISO(dateFrom);
-        String to = DateUtil.formatDateISO(dateUntil);
-        QueryBuilder query = QueryBuilders
-                .rangeQuery("xbib:timestamp")
-                .from(from)
-                .to(to)
-                .includeLower(true)
-                .includeUpper(true);
+        prepareList(cursor, searchRequestBuilder);
         searchRequestBuilder
-                .setIndices(index)
-                .setTypes(type)
-                .setFrom(request.getResumptionToken().getPosition())
-                .setSize(request.getResumptionToken().getInterval())
-                .setQuery(query);
-    }
-
-    private String getIndexFrom(ServerOAIRequest request) {
-        String index = null;
-        String path = request.getPath();
-        path = path != null && path.startsWith("/oai") ? path.substring(4) : path;
-        if (path != null) {
-            String[] spec = path.split("/");
-            if (spec.length > 1) {
-                index = spec[spec.length - 2];
-            } else if (spec.length == 1) {
-                index = spec[spec.length - 1];
+                .setFetchSource(true)
+                .addField(METADATA_FIELD)
+                .addField(METADATA_PREFIX_FIELD)
+                .addFieldDataField(setField);
+        logger.debug("list records: {}", cursor);
+    }
+
+    /**
+     * Headers only: identifier and datestamp come from the sort values, set membership from doc values,
+     * and {@code _source} is never loaded.
+     */
+    public void listIdentifiers(OAICursor cursor, SearchRequestBuilder searchRequestBuilder)
+            throws OAIException {
+        prepareList(cursor, searchRequestBuilder);
+        searchRequestBuilder
+                .setFetchSource(false)
+                .addFieldDataField(setField);
+        logger.debug("list identifiers: {}", cursor);
+    }
+
+    private void prepareList(OAICursor cursor, SearchRequestBuilder searchRequestBuilder)
+            throws OAIException {
+        Date dateFrom = cursor.getFrom();
+        Date dateUntil = cursor.getUntil();
+        if (dateFrom != null && dateUntil != null && dateUntil.before(dateFrom)) {
+            throw new OAIServerException("badArgument", "illegal date arguments");
+        }
+        BoolQueryBuilder query = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.rangeQuery(TIMESTAMP_FIELD)
+                        .from(dateFrom != null ? DateUtil.formatDateISO(dateFrom) : null)
+                        .to(dateUntil != null ? DateUtil.formatDateISO(dateUntil) : null)
+                        .includeLower(true)
+                        .includeUpper(true));
+        if (cursor.getSet() != null) {
+            query.filter(setFilter(cursor.getSet()));
+        }
+        if (cursor.isResumed()) {
+            query.filter(QueryBuilders.rangeQuery(TIMESTAMP_FIELD).gte(cursor.getLastTimestamp()))
+                    .filter(after(cursor));
+        }
+        setIndexAndType(searchRequestBuilder, null, cursor.getType());
+        if (cursor.getIndex() != null) {
+            // tombstones share the sort order of the records, so deleted records merge into the same stream
+            searchRequestBuilder.setIndices(cursor.getIndex(), tombstoneIndexOf(cursor.getIndex()));
+        }
+        searchRequestBuilder
+                .setIndicesOptions(IndicesOptions.lenientExpandOpen())
+                .setSize(cursor.getSize())
+                .setQuery(query)
+                .addSort(TIMESTAMP_FIELD, SortOrder.ASC)
+                .addSort(SortBuilders.fieldSort(SEQUENCE_FIELD)
+                        .order(SortOrder.ASC)
+                        .missing("_first")
+                        .unmappedType("long"))
+                .addSort(UID_FIELD, SortOrder.ASC);
+    }
+
+    /**
+     * The records strictly after the last record of a cursor in sort order. Only numeric ranges on
+     * doc values and a terms filter on the few uids delivered with the last sort values are used,
+     * a range over {@code _uid} would enumerate the terms of the whole index.
+     *
+     * @param cursor the cursor
+     * @return the filter
+     */
+    private static QueryBuilder after(OAICursor cursor) {
+        long timestamp = cursor.getLastTimestamp();
+        long sequence = cursor.getLastSequence();
+        QueryBuilder sameSequence = sequence == OAICursor.MISSING_SEQUENCE ?
+                QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery(SEQUENCE_FIELD)) :
+                QueryBuilders.rangeQuery(SEQUENCE_FIELD).gte(sequence).lte(sequence);
+        return QueryBuilders.boolQuery()
+                .should(QueryBuilders.rangeQuery(TIMESTAMP_FIELD).gt(timestamp))
+                .should(QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.rangeQuery(TIMESTAMP_FIELD).gte(timestamp).lte(timestamp))
+                        .filter(QueryBuilders.rangeQuery(SEQUENCE_FIELD).gt(sequence)))
+                .should(QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.rangeQuery(TIMESTAMP_FIELD).gte(timestamp).lte(timestamp))
+                        .filter(sameSequence)
+                        .mustNot(QueryBuilders.termsQuery(UID_FIELD, cursor.getLastUids())))
+                .minimumNumberShouldMatch(1);
+    }
+
+    /**
+     * A set spec selects the records in the set and, for hierarchical specs like {@code a:b},
+     * also the records in all its subsets like {@code a:b:c}. Used as a non-scoring filter clause,
+     * the clauses are cached per segment and reused by repeated set harvests.
+     *
+     * @param setSpec the set spec
+     * @return the filter
+     */
+    public QueryBuilder setFilter(String setSpec) {
+        return QueryBuilders.boolQuery()
+                .should(QueryBuilders.termQuery(setField, setSpec))
+                .should(QueryBuilders.prefixQuery(setField, setSpec + ":"))
+                .minimumNumberShouldMatch(1);
+    }
+
+    /**
+     * Add all ancestors of hierarchical set specs.
+     *
+     * @param setSpecs the set specs
+     * @return the set specs including their ancestors
+     */
+    public Set<String> withAncestors(Collection<String> setSpecs) {
+        Set<String> result = new TreeSet<>();
+        for (String setSpec : setSpecs) {
+            int i = setSpec.indexOf(':');
+            while (i > 0) {
+                result.add(setSpec.substring(0, i));
+                i = setSpec.indexOf(':', i + 1);
             }
+            result.add(setSpec);
         }
-        return index;
+        return result;
+    }
+
+    private static void setIndexAndType(SearchRequestBuilder searchRequestBuilder, String index, String type) {
+        if (index != null) {
+            searchRequestBuilder.setIndices(index);
+        }
+        if (type != null) {
+            searchRequestBuilder.setTypes(type);
+        }
+    }
+
+    public interface ResponseLoader {
+
+        void load(ActionListener<BytesReference> listener);
+    }
+
+    /**
+     * A loader for a list page, rendered into recycled pages.
+     */
+    public interface PageLoader {
+
+        void load(ActionListener<ReleasableBytesStreamOutput> listener);
+    }
+
+    /**
+     * A listener for a list page. A shared page is given as a byte array, a page that is
+     * neither cached nor shared is given as recycled pages that the listener must release.
+     */
+    public interface PageListener extends ActionListener<BytesReference> {
+
+        void onPage(ReleasableBytesStreamOutput page);
     }
 
-    private String getTypeFrom(ServerOAIRequest request) {
-        String type = null;
-        String path = request.getPath();
-        path = path != null && path.startsWith("/oai") ? path.substring(4) : path;
-        if (path != null) {
-            String[] spec = path.split("/");
-            if (spec.length > 1) {
-                type = spec[spec.length - 1];
-            } else if (spec.length == 1) {
-                type = null;
+    private static class PendingPage {
+
+        private final List<PageListener> listeners;
+
+        private boolean completed;
+
+        PendingPage(PageListener listener) {
+            this.listeners = new ArrayList<>();
+            listeners.add(listener);
+        }
+
+        synchronized boolean join(PageListener listener) {
+            if (completed) {
+                return false;
             }
+            listeners.add(listener);
+            return true;
+        }
+
+        synchronized List<PageListener> complete() {
+            completed = true;
+            return listeners;
         }
-        return type;
     }
 
+    private static class CachedRefreshCounts {
+
+        final Map<String, Long> refreshCounts;
+
+        final long created;
+
+        CachedRefreshCounts(Map<String, Long> refreshCounts, long created) {
+            this.refreshCounts = refreshCounts;
+            this.created = created;
+        }
+    }
 }
@@ -0,0 +1,20 @@
+package org.xbib.elasticsearch.oai;
+
+import org.xbib.oai.exceptions.OAIException;
+
+/**
+ * An OAI exception that is reported to the harvester as an OAI-PMH error with an error code.
+ */
+public class OAIServerException extends OAIException {
+
+    private final String code;
+
+    public OAIServerException(String code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    public String getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,128 @@
+package org.xbib.elasticsearch.oai;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of OAI requests per index and verb. Counters are striped, latencies are kept in
+ * histograms, so recording does not contend between request threads.
+ *
+ * The search time is the time from the start of a request until the data for the response is
+ * available. The serialization time is the time spent rendering the response from the data.
+ */
+public class OAIStats implements ToXContent {
+
+    private final static double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    private final static Set<String> VERBS = new HashSet<>(Arrays.asList("Identify", "ListMetadataFormats",
+            "ListSets", "ListIdentifiers", "ListRecords", "GetRecord", "dump"));
+
+    private final static String BAD_VERB = "badVerb";
+
+    private final ConcurrentMap<String, ConcurrentMap<String, VerbStats>> stats;
+
+    public OAIStats() {
+        this.stats = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Record a request.
+     *
+     * @param index the index, or null
+     * @param verb the verb, unknown verbs are counted together as {@code badVerb}
+     * @param searchNanos the search time in nanoseconds
+     * @param serializationNanos the serialization time in nanoseconds
+     * @param records the number of records or headers in the response
+     * @param bytes the number of bytes in the response
+     * @param depth the number of pages delivered before, for list requests
+     */
+    public void record(String index, String verb, long searchNanos, long serializationNanos,
+                       long records, long bytes, int depth) {
+        stats.computeIfAbsent(index != null ? index : "_all", k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(VERBS.contains(verb) ? verb : BAD_VERB, k -> new VerbStats())
+                .record(searchNanos, serializationNanos, records, bytes, depth);
+    }
+
+    public void clear() {
+        stats.clear();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("indices");
+        for (Map.Entry<String, ConcurrentMap<String, VerbStats>> index : new TreeMap<>(stats).entrySet()) {
+            builder.startObject(index.getKey());
+            for (Map.Entry<String, VerbStats> verb : new TreeMap<>(index.getValue()).entrySet()) {
+                builder.startObject(verb.getKey());
+                verb.getValue().toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    private static class VerbStats implements ToXContent {
+
+        private final LongAdder requests = new LongAdder();
+
+        private final LongAdder records = new LongAdder();
+
+        private final LongAdder bytes = new LongAdder();
+
+        private final LongAdder depthSum = new LongAdder();
+
+        private final LongAccumulator depthMax = new LongAccumulator(Math::max, 0L);
+
+        private final LatencyHistogram search = new LatencyHistogram();
+
+        private final LatencyHistogram serialization = new LatencyHistogram();
+
+        void record(long searchNanos, long serializationNanos, long records, long bytes, int depth) {
+            this.requests.increment();
+            this.records.add(records);
+            this.bytes.add(bytes);
+            this.depthSum.add(depth);
+            this.depthMax.accumulate(depth);
+            this.search.record(searchNanos / 1000L);
+            this.serialization.record(serializationNanos / 1000L);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            long requestCount = requests.sum();
+            builder.field("requests", requestCount)
+                    .field("records", records.sum())
+                    .field("bytes", bytes.sum());
+            builder.startObject("resume_depth")
+                    .field("mean", requestCount > 0 ? (double) depthSum.sum() / requestCount : 0.0)
+                    .field("max", depthMax.get())
+                    .endObject();
+            percentiles(builder, "search_time_in_micros", search);
+            percentiles(builder, "serialization_time_in_micros", serialization);
+            return builder;
+        }
+
+        private static void percentiles(XContentBuilder builder, String name, LatencyHistogram histogram)
+                throws IOException {
+            builder.startObject(name);
+            for (double percentile : PERCENTILES) {
+                builder.field("p" + percentile, histogram.percentile(percentile));
+            }
+            builder.field("max", histogram.percentile(100.0));
+            builder.endObject();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.xbib.elasticsearch.oai;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A per-node cache of rendered list pages with a short time to live, bounded in bytes.
+ * It serves harvesters that request the same page a few moments after each other.
+ * It also holds the rendered Identify and ListSets fragments, with a longer time to live.
+ */
+public class PageCache {
+
+    private final long maxBytes;
+
+    private final long ttlNanos;
+
+    private final LinkedHashMap<String, Entry> map;
+
+    private long bytes;
+
+    public PageCache(long maxBytes, long ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.map = new LinkedHashMap<>();
+    }
+
+    public synchronized BytesReference get(String key) {
+        Entry entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.created > ttlNanos) {
+            map.remove(key);
+            bytes -= entry.page.length();
+            return null;
+        }
+        return entry.page;
+    }
+
+    /**
+     * Check if a page of a size would be cached at all.
+     */
+    public boolean accepts(long length) {
+        return ttlNanos > 0L && length <= maxBytes;
+    }
+
+    public synchronized void put(String key, BytesReference page) {
+        if (!accepts(page.length())) {
+            return;
+        }
+        // insertion order is creation order, so the eldest entries expire first
+        Entry old = map.remove(key);
+        if (old != null) {
+            bytes -= old.page.length();
+        }
+        long now = System.nanoTime();
+        map.put(key, new Entry(page, now));
+        bytes += page.length();
+        Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (bytes <= maxBytes && now - entry.created <= ttlNanos) {
+                break;
+            }
+            bytes -= entry.page.length();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        bytes = 0L;
+    }
+
+    private static class Entry {
+
+        final BytesReference page;
+
+        final long created;
+
+        Entry(BytesReference page, long created) {
+            this.page = page;
+            this.created = created;
+        }
+    }
+}
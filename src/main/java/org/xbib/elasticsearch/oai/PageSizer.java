@@ -0,0 +1,104 @@
+package org.xbib.elasticsearch.oai;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Chooses the number of records on a ListRecords page from a byte budget and a serialization time budget,
+ * using running estimates of the size and serialization time of a record in each index.
+ *
+ * Estimates are exponentially weighted moving averages over rendered pages. As long as an index has
+ * no estimate, the configured page size is used. The size is chosen when a harvest starts and is kept
+ * in the resumption token, so all pages of a harvest have the same size.
+ */
+public class PageSizer {
+
+    private final static double ALPHA = 0.2;
+
+    private final int initialSize;
+
+    private final int minSize;
+
+    private final int maxSize;
+
+    private final long targetBytes;
+
+    private final long budgetNanos;
+
+    private final ConcurrentMap<String, Estimate> estimates;
+
+    public PageSizer(Settings settings, int initialSize) {
+        this.initialSize = initialSize;
+        this.minSize = settings.getAsInt("oai.listrecords.min_size", 10);
+        this.maxSize = settings.getAsInt("oai.listrecords.max_size", 1000);
+        this.targetBytes = settings.getAsBytesSize("oai.listrecords.target_size",
+                new ByteSizeValue(4, ByteSizeUnit.MB)).bytes();
+        this.budgetNanos = settings.getAsTime("oai.listrecords.time_budget",
+                TimeValue.timeValueSeconds(1)).nanos();
+        this.estimates = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The page size for a new harvest.
+     *
+     * @param index the index, or null
+     * @return the page size
+     */
+    public int pageSize(String index) {
+        Estimate estimate = estimates.get(keyOf(index));
+        if (estimate == null) {
+            return initialSize;
+        }
+        double bytesPerRecord = estimate.bytesPerRecord;
+        double nanosPerRecord = estimate.nanosPerRecord;
+        double size = Math.min(targetBytes / Math.max(1.0, bytesPerRecord),
+                budgetNanos / Math.max(1.0, nanosPerRecord));
+        return (int) Math.max(minSize, Math.min(maxSize, size));
+    }
+
+    /**
+     * Update the estimates of an index with a rendered page.
+     *
+     * @param index the index, or null
+     * @param bytes the bytes of the page
+     * @param nanos the serialization time of the page
+     * @param records the number of records on the page
+     */
+    public void update(String index, long bytes, long nanos, long records) {
+        if (records <= 0L) {
+            return;
+        }
+        estimates.computeIfAbsent(keyOf(index), k -> new Estimate((double) bytes / records, (double) nanos / records))
+                .update((double) bytes / records, (double) nanos / records);
+    }
+
+    public void clear() {
+        estimates.clear();
+    }
+
+    private static String keyOf(String index) {
+        return index != null ? index : "_all";
+    }
+
+    private static class Estimate {
+
+        private volatile double bytesPerRecord;
+
+        private volatile double nanosPerRecord;
+
+        Estimate(double bytesPerRecord, double nanosPerRecord) {
+            this.bytesPerRecord = bytesPerRecord;
+            this.nanosPerRecord = nanosPerRecord;
+        }
+
+        synchronized void update(double bytesPerRecord, double nanosPerRecord) {
+            this.bytesPerRecord += ALPHA * (bytesPerRecord - this.bytesPerRecord);
+            this.nanosPerRecord += ALPHA * (nanosPerRecord - this.nanosPerRecord);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.xbib.elasticsearch.oai;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A per-node, size-bounded LRU cache of rendered record XML. Keys contain the document version,
+ * so an updated record is never served from a stale entry, stale entries just age out.
+ */
+public class RecordCache {
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, BytesReference> map;
+
+    private long bytes;
+
+    public RecordCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.map = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public static String key(String index, String identifier, String metadataPrefix, long version) {
+        return index + '\u0000' + identifier + '\u0000' + metadataPrefix + '\u0000' + version;
+    }
+
+    public synchronized BytesReference get(String key) {
+        return map.get(key);
+    }
+
+    public synchronized void put(String key, BytesReference value) {
+        if (value.length() > maxBytes) {
+            return;
+        }
+        BytesReference old = map.put(key, value);
+        bytes += value.length() - (old != null ? old.length() : 0);
+        Iterator<Map.Entry<String, BytesReference>> it = map.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().length();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        bytes = 0L;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long sizeInBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,155 @@
+package org.xbib.elasticsearch.oai;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Encodes a cursor into a self-contained resumption token and back.
+ *
+ * A token is the URL-safe base64 form of a version byte, the cursor fields, and a truncated
+ * HMAC-SHA256 over both. No server-side state is needed, so any node sharing the secret can
+ * resume a harvest, and tampered tokens are rejected before any search runs.
+ */
+public class ResumptionTokenCodec {
+
+    private final static byte VERSION = 4;
+
+    private final static String ALGORITHM = "HmacSHA256";
+
+    private final static int MAC_LENGTH = 16;
+
+    private final SecretKeySpec key;
+
+    private final ThreadLocal<Mac> macs;
+
+    public ResumptionTokenCodec(byte[] secret) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    public String encode(OAICursor cursor) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            writeString(out, cursor.getVerb());
+            writeString(out, cursor.getIndex());
+            writeString(out, cursor.getType());
+            writeDate(out, cursor.getFrom());
+            writeDate(out, cursor.getUntil());
+            writeString(out, cursor.getSet());
+            writeString(out, cursor.getMetadataPrefix());
+            out.writeInt(cursor.getSize());
+            out.writeLong(cursor.getPosition());
+            out.writeInt(cursor.getDepth());
+            out.writeLong(cursor.getLastTimestamp());
+            out.writeLong(cursor.getLastSequence());
+            List<String> lastUids = cursor.getLastUids();
+            out.writeInt(lastUids != null ? lastUids.size() : -1);
+            if (lastUids != null) {
+                for (String uid : lastUids) {
+                    out.writeUTF(uid);
+                }
+            }
+            out.write(sign(bytes.toByteArray()));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        } catch (IOException e) {
+            // can not happen on byte arrays
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public OAICursor decode(String token) throws OAIServerException {
+        byte[] b;
+        try {
+            b = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            throw new OAIServerException("badResumptionToken", "malformed resumption token");
+        }
+        if (b.length <= MAC_LENGTH + 1 || b[0] != VERSION) {
+            throw new OAIServerException("badResumptionToken", "unknown resumption token");
+        }
+        byte[] content = Arrays.copyOf(b, b.length - MAC_LENGTH);
+        byte[] mac = Arrays.copyOfRange(b, b.length - MAC_LENGTH, b.length);
+        if (!MessageDigest.isEqual(mac, sign(content))) {
+            throw new OAIServerException("badResumptionToken", "invalid resumption token");
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content, 1, content.length - 1));
+            OAICursor cursor = new OAICursor()
+                    .setVerb(readString(in))
+                    .setIndex(readString(in))
+                    .setType(readString(in))
+                    .setFrom(readDate(in))
+                    .setUntil(readDate(in))
+                    .setSet(readString(in))
+                    .setMetadataPrefix(readString(in))
+                    .setSize(in.readInt());
+            long position = in.readLong();
+            cursor.setDepth(in.readInt());
+            long lastTimestamp = in.readLong();
+            long lastSequence = in.readLong();
+            int n = in.readInt();
+            if (n < -1 || n > content.length) {
+                throw new OAIServerException("badResumptionToken", "malformed resumption token");
+            }
+            List<String> lastUids = null;
+            if (n >= 0) {
+                lastUids = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    lastUids.add(in.readUTF());
+                }
+            }
+            return cursor.setLast(position, lastTimestamp, lastSequence, lastUids);
+        } catch (IOException e) {
+            throw new OAIServerException("badResumptionToken", "truncated resumption token");
+        }
+    }
+
+    private byte[] sign(byte[] content) {
+        Mac mac = macs.get();
+        return Arrays.copyOf(mac.doFinal(content), MAC_LENGTH);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeDate(DataOutputStream out, Date date) throws IOException {
+        out.writeBoolean(date != null);
+        if (date != null) {
+            out.writeLong(date.getTime());
+        }
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException {
+        return in.readBoolean() ? new Date(in.readLong()) : null;
+    }
+}
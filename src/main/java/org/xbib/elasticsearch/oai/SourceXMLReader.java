@@ -0,0 +1,212 @@
+package org.xbib.elasticsearch.oai;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+
+import javax.xml.namespace.NamespaceContext;
+import java.io.IOException;
+
+/**
+ * A SAX reader that walks the token stream of a stored {@code _source} and reports it as XML,
+ * so the source can be fed into a transformer without building a map or a DOM.
+ *
+ * The document element is {@code record}. Every field becomes an element named by its key, arrays
+ * repeat the element, objects nest, and scalar values become character data. Keys with a prefix
+ * known to the namespace context, like {@code dc:title}, are reported in their namespace, other keys
+ * are reported without namespace by their local part. Keys that are no XML names are skipped.
+ */
+public class SourceXMLReader implements XMLReader {
+
+    public final static String RECORD = "record";
+
+    private final static String NAMESPACES = "http://xml.org/sax/features/namespaces";
+
+    private final static String NAMESPACE_PREFIXES = "http://xml.org/sax/features/namespace-prefixes";
+
+    private final static AttributesImpl NO_ATTRIBUTES = new AttributesImpl();
+
+    private final BytesReference source;
+
+    private final NamespaceContext namespaceContext;
+
+    private ContentHandler contentHandler;
+
+    private DTDHandler dtdHandler;
+
+    private EntityResolver entityResolver;
+
+    private ErrorHandler errorHandler;
+
+    public SourceXMLReader(BytesReference source, NamespaceContext namespaceContext) {
+        this.source = source;
+        this.namespaceContext = namespaceContext;
+    }
+
+    @Override
+    public boolean getFeature(String name) throws SAXNotRecognizedException {
+        if (NAMESPACES.equals(name)) {
+            return true;
+        }
+        if (NAMESPACE_PREFIXES.equals(name)) {
+            return false;
+        }
+        throw new SAXNotRecognizedException(name);
+    }
+
+    @Override
+    public void setFeature(String name, boolean value) throws SAXNotRecognizedException {
+        if (!NAMESPACES.equals(name) && !NAMESPACE_PREFIXES.equals(name)) {
+            throw new SAXNotRecognizedException(name);
+        }
+    }
+
+    @Override
+    public Object getProperty(String name) throws SAXNotRecognizedException {
+        throw new SAXNotRecognizedException(name);
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws SAXNotRecognizedException {
+        throw new SAXNotRecognizedException(name);
+    }
+
+    @Override
+    public void setEntityResolver(EntityResolver resolver) {
+        this.entityResolver = resolver;
+    }
+
+    @Override
+    public EntityResolver getEntityResolver() {
+        return entityResolver;
+    }
+
+    @Override
+    public void setDTDHandler(DTDHandler handler) {
+        this.dtdHandler = handler;
+    }
+
+    @Override
+    public DTDHandler getDTDHandler() {
+        return dtdHandler;
+    }
+
+    @Override
+    public void setContentHandler(ContentHandler handler) {
+        this.contentHandler = handler;
+    }
+
+    @Override
+    public ContentHandler getContentHandler() {
+        return contentHandler;
+    }
+
+    @Override
+    public void setErrorHandler(ErrorHandler handler) {
+        this.errorHandler = handler;
+    }
+
+    @Override
+    public ErrorHandler getErrorHandler() {
+        return errorHandler;
+    }
+
+    /**
+     * Report the source. The input source is ignored, the source bytes are given at construction.
+     */
+    @Override
+    public void parse(InputSource input) throws IOException, SAXException {
+        try (XContentParser parser = XContentHelper.createParser(source)) {
+            contentHandler.startDocument();
+            contentHandler.startElement("", RECORD, RECORD, NO_ATTRIBUTES);
+            if (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+                object(parser);
+            }
+            contentHandler.endElement("", RECORD, RECORD);
+            contentHandler.endDocument();
+        }
+    }
+
+    @Override
+    public void parse(String systemId) throws IOException, SAXException {
+        parse(new InputSource(systemId));
+    }
+
+    private void object(XContentParser parser) throws IOException, SAXException {
+        String name = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                name = parser.currentName();
+            } else {
+                value(parser, token, name);
+            }
+        }
+    }
+
+    private void value(XContentParser parser, XContentParser.Token token, String name)
+            throws IOException, SAXException {
+        if (token == XContentParser.Token.START_ARRAY) {
+            while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                value(parser, token, name);
+            }
+            return;
+        }
+        if (!isName(name)) {
+            parser.skipChildren();
+            return;
+        }
+        int pos = name.indexOf(':');
+        String prefix = pos > 0 ? name.substring(0, pos) : null;
+        String uri = prefix != null ? namespaceContext.getNamespaceURI(prefix) : null;
+        boolean qualified = uri != null && !uri.isEmpty();
+        String localName = pos > 0 ? name.substring(pos + 1) : name;
+        String qName = qualified ? name : localName;
+        if (qualified) {
+            contentHandler.startPrefixMapping(prefix, uri);
+        } else {
+            uri = "";
+        }
+        contentHandler.startElement(uri, localName, qName, NO_ATTRIBUTES);
+        if (token == XContentParser.Token.START_OBJECT) {
+            object(parser);
+        } else if (token != XContentParser.Token.VALUE_NULL) {
+            contentHandler.characters(parser.textCharacters(), parser.textOffset(), parser.textLength());
+        }
+        contentHandler.endElement(uri, localName, qName);
+        if (qualified) {
+            contentHandler.endPrefixMapping(prefix);
+        }
+    }
+
+    private static boolean isName(String name) {
+        if (name == null || name.isEmpty()) {
+            return false;
+        }
+        int colons = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == ':') {
+                if (++colons > 1 || i == 0 || i == name.length() - 1) {
+                    return false;
+                }
+            } else if (i == 0 || name.charAt(i - 1) == ':') {
+                if (!Character.isLetter(c) && c != '_') {
+                    return false;
+                }
+            } else if (!Character.isLetterOrDigit(c) && c != '_' && c != '-' && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
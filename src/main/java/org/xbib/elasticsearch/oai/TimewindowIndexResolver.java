@@ -0,0 +1,142 @@
+package org.xbib.elasticsearch.oai;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
+import org.elasticsearch.search.aggregations.metrics.min.Min;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prunes the concrete time-window indices behind an alias by the timestamp range they hold.
+ * The range of each concrete index is computed once and kept until its refresh count changes.
+ * Ranges are kept per alias, and the ranges of indices that left the alias are dropped.
+ */
+public class TimewindowIndexResolver {
+
+    private final static String INDICES = "indices";
+
+    private final static String MIN = "min";
+
+    private final static String MAX = "max";
+
+    private final Client client;
+
+    private final Map<String, Map<String, TimestampRange>> ranges;
+
+    public TimewindowIndexResolver(Client client) {
+        this.client = client;
+        this.ranges = new ConcurrentHashMap<>();
+    }
+
+    public void resolve(final String alias, final Map<String, Long> refreshCounts, final Date from, final Date until,
+                        final ActionListener<String[]> listener) {
+        if (refreshCounts.isEmpty()) {
+            listener.onResponse(new String[0]);
+            return;
+        }
+        final Map<String, TimestampRange> aliasRanges = ranges.computeIfAbsent(alias, k -> new ConcurrentHashMap<>());
+        // indices that left the alias, or were deleted, are not resolved again
+        aliasRanges.keySet().retainAll(refreshCounts.keySet());
+        update(aliasRanges, refreshCounts, new ActionListener<Void>() {
+            @Override
+            public void onResponse(Void v) {
+                listener.onResponse(select(aliasRanges, refreshCounts, from, until));
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    private void update(final Map<String, TimestampRange> aliasRanges, final Map<String, Long> refreshCounts,
+                        final ActionListener<Void> listener) {
+        final List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : refreshCounts.entrySet()) {
+            TimestampRange range = aliasRanges.get(entry.getKey());
+            if (range == null || range.refreshCount != entry.getValue()) {
+                stale.add(entry.getKey());
+            }
+        }
+        if (stale.isEmpty()) {
+            listener.onResponse(null);
+            return;
+        }
+        new SearchRequestBuilder(client, SearchAction.INSTANCE)
+                .setIndices(stale.toArray(new String[stale.size()]))
+                .setSize(0)
+                .addAggregation(AggregationBuilders.terms(INDICES).field("_index").size(0)
+                        .subAggregation(AggregationBuilders.min(MIN).field(OAIServer.TIMESTAMP_FIELD))
+                        .subAggregation(AggregationBuilders.max(MAX).field(OAIServer.TIMESTAMP_FIELD)))
+                .execute(new ActionListener<SearchResponse>() {
+                    @Override
+                    public void onResponse(SearchResponse response) {
+                        // indices without buckets hold no timestamped records
+                        for (String index : stale) {
+                            aliasRanges.put(index, new TimestampRange(refreshCounts.get(index), Long.MAX_VALUE, Long.MIN_VALUE));
+                        }
+                        Terms terms = response.getAggregations().get(INDICES);
+                        for (Terms.Bucket bucket : terms.getBuckets()) {
+                            String index = bucket.getKeyAsString();
+                            Min min = bucket.getAggregations().get(MIN);
+                            Max max = bucket.getAggregations().get(MAX);
+                            Long refreshCount = refreshCounts.get(index);
+                            if (refreshCount != null) {
+                                aliasRanges.put(index, new TimestampRange(refreshCount,
+                                        (long) min.getValue(), (long) max.getValue()));
+                            }
+                        }
+                        listener.onResponse(null);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        listener.onFailure(e);
+                    }
+                });
+    }
+
+    public void clear() {
+        ranges.clear();
+    }
+
+    private static String[] select(Map<String, TimestampRange> aliasRanges, Map<String, Long> refreshCounts,
+                                   Date from, Date until) {
+        long lower = from != null ? from.getTime() : Long.MIN_VALUE;
+        long upper = until != null ? until.getTime() : Long.MAX_VALUE;
+        List<String> indices = new ArrayList<>();
+        for (String index : refreshCounts.keySet()) {
+            TimestampRange range = aliasRanges.get(index);
+            if (range == null || (range.min <= upper && range.max >= lower)) {
+                indices.add(index);
+            }
+        }
+        return indices.toArray(new String[indices.size()]);
+    }
+
+    private static class TimestampRange {
+
+        final long refreshCount;
+
+        final long min;
+
+        final long max;
+
+        TimestampRange(long refreshCount, long min, long max) {
+            this.refreshCount = refreshCount;
+            this.min = min;
+            this.max = max;
+        }
+    }
+}
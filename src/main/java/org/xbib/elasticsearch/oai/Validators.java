@@ -0,0 +1,54 @@
+package org.xbib.elasticsearch.oai;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * HTTP cache validators of an OAI response: an entity tag.
+ *
+ * There is no last modification date. The datestamps of the records are the datestamps of the source
+ * repository, and records that are harvested again or backfilled change the content without a later datestamp,
+ * so a date would answer If-Modified-Since with a stale 304.
+ */
+public class Validators {
+
+    private final String etag;
+
+    public Validators(String state) {
+        this.etag = "\"" + digest(state) + "\"";
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * Evaluate the If-None-Match precondition of a conditional GET.
+     *
+     * @param ifNoneMatch the If-None-Match header, or null
+     * @return true if the client copy is still valid and the response is 304 Not Modified
+     */
+    public boolean notModified(String ifNoneMatch) {
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                String s = tag.trim();
+                if (s.equals("*") || s.equals(etag) || s.equals("W/" + etag)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String digest(String s) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(messageDigest.digest(s.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.xbib.elasticsearch.plugin.oai;
+
+import org.elasticsearch.common.inject.AbstractModule;
+import org.xbib.elasticsearch.oai.OAIServer;
+
+public class OAIModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(OAIServer.class).asEagerSingleton();
+    }
+}
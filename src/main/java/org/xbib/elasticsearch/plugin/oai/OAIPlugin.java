@@ -1,7 +1,18 @@
 package org.xbib.elasticsearch.plugin.oai;
 
+import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.rest.RestModule;
+import org.xbib.elasticsearch.oai.OAIAdmission;
+import org.xbib.elasticsearch.oai.OAIServer;
+import org.xbib.elasticsearch.plugin.rest.oai.RestOAISearchAction;
+
+import java.util.ArrayList;
+import java.util.Collection;
 
 public class OAIPlugin extends Plugin {
 
@@ -19,5 +30,36 @@ public class OAIPlugin extends Plugin {
         return "OAI Plugin";
     }
 
+    /**
+     * A bounded pool of its own for OAI requests, so harvesters queue up there instead of
+     * in the search pool. It can be tuned with the usual {@code threadpool.oai} settings.
+     */
+    @Override
+    public Settings additionalSettings() {
+        String prefix = "threadpool." + OAIAdmission.THREAD_POOL + ".";
+        return Settings.settingsBuilder()
+                .put(prefix + "type", "fixed")
+                .put(prefix + "size", Math.max(1, EsExecutors.boundedNumberOfProcessors(Settings.EMPTY) / 2))
+                .put(prefix + "queue_size", 100)
+                .build();
+    }
+
+    @Override
+    public Collection<Module> nodeModules() {
+        Collection<Module> modules = new ArrayList<>();
+        modules.add(new OAIModule());
+        return modules;
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> nodeServices() {
+        Collection<Class<? extends LifecycleComponent>> services = new ArrayList<>();
+        services.add(OAIServer.class);
+        return services;
+    }
+
+    public void onModule(RestModule module) {
+        module.addRestAction(RestOAISearchAction.class);
+    }
 
 }
@@ -0,0 +1,106 @@
+package org.xbib.elasticsearch.plugin.rest.oai;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Negotiation and streaming encoders for the gzip and deflate content encodings.
+ */
+public final class ContentEncoding {
+
+    public final static String GZIP = "gzip";
+
+    public final static String DEFLATE = "deflate";
+
+    private final static int BUFFER_SIZE = 8192;
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * Select a content encoding from an Accept-Encoding header. Gzip is preferred over deflate,
+     * encodings with a quality value of zero are refused.
+     *
+     * @param acceptEncoding the Accept-Encoding header, or null
+     * @return the content encoding, or null for the identity encoding
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String s : acceptEncoding.split(",")) {
+            String[] parts = s.trim().split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            if (parts.length > 1 && isZero(parts[1])) {
+                continue;
+            }
+            if (GZIP.equals(coding) || "x-gzip".equals(coding) || "*".equals(coding)) {
+                return GZIP;
+            }
+            if (DEFLATE.equals(coding)) {
+                deflate = true;
+            }
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    /**
+     * Create an encoder. Closing the encoder writes the trailer and frees the native compressor,
+     * but leaves the target stream open.
+     *
+     * @param encoding the content encoding
+     * @param out the target stream
+     * @param level the compression level
+     * @return the encoder
+     */
+    public static OutputStream encoder(String encoding, OutputStream out, int level) {
+        try {
+            if (GZIP.equals(encoding)) {
+                return new GZIPOutputStream(out, BUFFER_SIZE) {
+                    {
+                        def.setLevel(level);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            finish();
+                        } finally {
+                            def.end();
+                        }
+                    }
+                };
+            }
+            return new DeflaterOutputStream(out, new Deflater(level), BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        finish();
+                    } finally {
+                        def.end();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            // can not happen, responses are written into memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean isZero(String parameter) {
+        String s = parameter.trim();
+        if (!s.startsWith("q=")) {
+            return false;
+        }
+        try {
+            return Float.parseFloat(s.substring(2)) == 0.0f;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.xbib.elasticsearch.plugin.rest.oai;
+
+/**
+ * Formats UTC datestamps in OAI-PMH seconds granularity ({@code YYYY-MM-DDThh:mm:ssZ})
+ * into a per-thread character buffer, without creating calendar, formatter, or string objects.
+ */
+public final class OAIDateFormat {
+
+    public final static int LENGTH = 20;
+
+    private final static ThreadLocal<char[]> buffers = ThreadLocal.withInitial(() -> {
+        char[] buffer = new char[LENGTH];
+        buffer[4] = '-';
+        buffer[7] = '-';
+        buffer[10] = 'T';
+        buffer[13] = ':';
+        buffer[16] = ':';
+        buffer[19] = 'Z';
+        return buffer;
+    });
+
+    private OAIDateFormat() {
+    }
+
+    /**
+     * Format milliseconds since the epoch.
+     *
+     * @param millis the milliseconds since the epoch
+     * @return a thread-local buffer with {@link #LENGTH} characters, valid until the next call on this thread
+     */
+    public static char[] format(long millis) {
+        char[] buffer = buffers.get();
+        long seconds = Math.floorDiv(millis, 1000L);
+        long days = Math.floorDiv(seconds, 86400L);
+        int secondOfDay = (int) Math.floorMod(seconds, 86400L);
+        // civil date from days since the epoch, see H. Hinnant, "chrono-Compatible Low-Level Date Algorithms"
+        long z = days + 719468L;
+        long era = Math.floorDiv(z, 146097L);
+        long dayOfEra = z - era * 146097L;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        buffer[0] = (char) ('0' + year / 1000 % 10);
+        buffer[1] = (char) ('0' + year / 100 % 10);
+        buffer[2] = (char) ('0' + year / 10 % 10);
+        buffer[3] = (char) ('0' + year % 10);
+        put2(buffer, 5, month);
+        put2(buffer, 8, day);
+        put2(buffer, 11, secondOfDay / 3600);
+        put2(buffer, 14, secondOfDay / 60 % 60);
+        put2(buffer, 17, secondOfDay % 60);
+        return buffer;
+    }
+
+    private static void put2(char[] buffer, int pos, int value) {
+        buffer[pos] = (char) ('0' + value / 10);
+        buffer[pos + 1] = (char) ('0' + value % 10);
+    }
+}
@@ -0,0 +1,376 @@
+package org.xbib.elasticsearch.plugin.rest.oai;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.ThreadedActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.xbib.elasticsearch.oai.OAIAdmission;
+import org.xbib.elasticsearch.oai.OAIServer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A full dump of an index in chunks, each an OAI-PMH ListRecords document without resumption token,
+ * or newline-delimited JSON.
+ *
+ * Each shard is read by its own scroll in index order, and the scrolls run in parallel. Pages are
+ * written into the response as they arrive, so slices interleave, and the body is compressed while
+ * it is written. A single shard can be dumped with the {@code shard} parameter.
+ *
+ * The body of a chunk is held in memory. A slice stops reading when the chunk has reached
+ * {@code oai.dump.chunk_size} (default 16mb), so a chunk exceeds it by at most one page per slice.
+ * If slices are left, the response carries their scroll ids in the {@code X-OAI-Dump-Continuation} header,
+ * and the dump is continued by a request with the {@code continuation} parameter within
+ * {@code oai.dump.keep_alive}. A node runs only {@code oai.dump.concurrency} chunks at a time.
+ */
+public class OAIDump extends OAIResponseBuilder {
+
+    public final static String XML = "xml";
+
+    public final static String NDJSON = "ndjson";
+
+    private final static String NDJSON_CONTENT_TYPE = "application/x-ndjson; charset=UTF-8";
+
+    public final static String CONTINUATION_HEADER = "X-OAI-Dump-Continuation";
+
+    private final static ESLogger logger = Loggers.getLogger(OAIDump.class);
+
+    private final Client client;
+
+    private final ThreadPool threadPool;
+
+    private final ReleasableBytesStreamOutput out;
+
+    private final int size;
+
+    private final TimeValue keepAlive;
+
+    private final long chunkSize;
+
+    private final List<String> continuation;
+
+    private final AtomicBoolean failed;
+
+    private String format;
+
+    private String metadataPrefix;
+
+    private String setField;
+
+    private AtomicInteger slices;
+
+    public OAIDump(Settings settings, RestChannel channel, BigArrays bigArrays, Client client, ThreadPool threadPool) {
+        super(settings, channel, bigArrays);
+        this.client = client;
+        this.threadPool = threadPool;
+        this.out = new ReleasableBytesStreamOutput(bigArrays);
+        this.size = settings.getAsInt("oai.dump.size", 1000);
+        this.keepAlive = settings.getAsTime("oai.dump.keep_alive", TimeValue.timeValueMinutes(1));
+        this.chunkSize = settings.getAsBytesSize("oai.dump.chunk_size", new ByteSizeValue(16, ByteSizeUnit.MB)).bytes();
+        this.continuation = new ArrayList<>();
+        this.failed = new AtomicBoolean();
+    }
+
+    public OAIDump setFormat(String format) {
+        this.format = format;
+        return this;
+    }
+
+    public OAIDump setMetadataPrefix(String metadataPrefix) {
+        this.metadataPrefix = metadataPrefix;
+        return this;
+    }
+
+    public String getMetadataPrefix() {
+        return metadataPrefix;
+    }
+
+    @Override
+    public OAIResponseBuilder setSetField(String setField) {
+        this.setField = setField;
+        return super.setSetField(setField);
+    }
+
+    /**
+     * Dump the index, or a single shard of it.
+     *
+     * @param index the index
+     * @param type the type, or null
+     * @param shard the shard, or null for all shards
+     */
+    public void dump(final String index, final String type, final Integer shard) {
+        if (shard != null) {
+            start(index, type, shard, shard + 1);
+            return;
+        }
+        client.admin().cluster().prepareState()
+                .clear()
+                .setMetaData(true)
+                .setIndices(index)
+                .execute(new ActionListener<ClusterStateResponse>() {
+                    @Override
+                    public void onResponse(ClusterStateResponse response) {
+                        int shards = 0;
+                        for (IndexMetaData indexMetaData : response.getState().metaData()) {
+                            shards = Math.max(shards, indexMetaData.getNumberOfShards());
+                        }
+                        start(index, type, 0, shards);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        fail(e);
+                    }
+                });
+    }
+
+    /**
+     * Continue a dump with the next chunk.
+     *
+     * @param continuation the scroll ids of the slices left, as given by the previous chunk
+     */
+    public void resume(String continuation) {
+        List<String> scrollIds = new ArrayList<>();
+        for (String scrollId : continuation.split(",")) {
+            if (!scrollId.trim().isEmpty()) {
+                scrollIds.add(scrollId.trim());
+            }
+        }
+        try {
+            begin();
+            if (scrollIds.isEmpty()) {
+                finish();
+                return;
+            }
+            slices = new AtomicInteger(scrollIds.size());
+            for (String scrollId : scrollIds) {
+                client.prepareSearchScroll(scrollId)
+                        .setScroll(keepAlive)
+                        .execute(sliceListener());
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private void begin() throws Exception {
+        setOutputStream(encode(out));
+        if (!NDJSON.equals(format)) {
+            beginDocument();
+            beginResponse();
+            beginElement(LIST_RECORDS);
+        }
+    }
+
+    private void start(String index, String type, int from, int to) {
+        try {
+            begin();
+            if (from >= to) {
+                finish();
+                return;
+            }
+            slices = new AtomicInteger(to - from);
+            for (int shard = from; shard < to; shard++) {
+                SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(client, SearchAction.INSTANCE)
+                        .setIndices(index)
+                        .setPreference("_shards:" + shard)
+                        .setScroll(keepAlive)
+                        .setSize(size)
+                        .addSort("_doc", SortOrder.ASC)
+                        .addFieldDataField(OAIServer.TIMESTAMP_FIELD);
+                if (type != null) {
+                    searchRequestBuilder.setTypes(type);
+                }
+                if (!NDJSON.equals(format)) {
+                    searchRequestBuilder
+                            .setFetchSource(true)
+                            .addField(OAIServer.METADATA_FIELD)
+                            .addField(OAIServer.METADATA_PREFIX_FIELD);
+                    if (setField != null) {
+                        searchRequestBuilder.addFieldDataField(setField);
+                    }
+                }
+                searchRequestBuilder.execute(sliceListener());
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * A listener for the pages of a slice that renders in the OAI pool, not in the search pool.
+     */
+    private ActionListener<SearchResponse> sliceListener() {
+        return new ThreadedActionListener<>(logger, threadPool, OAIAdmission.THREAD_POOL, new SliceListener());
+    }
+
+    private class SliceListener implements ActionListener<SearchResponse> {
+
+        @Override
+        public void onResponse(SearchResponse response) {
+            if (failed.get()) {
+                clearScroll(response.getScrollId());
+                return;
+            }
+            SearchHit[] hits = response.getHits().getHits();
+            boolean full;
+            try {
+                full = write(hits);
+            } catch (Exception e) {
+                clearScroll(response.getScrollId());
+                fail(e);
+                return;
+            }
+            if (hits.length == 0) {
+                clearScroll(response.getScrollId());
+                done();
+                return;
+            }
+            if (full) {
+                // the slice is continued by the next chunk
+                synchronized (OAIDump.this) {
+                    continuation.add(response.getScrollId());
+                }
+                done();
+                return;
+            }
+            client.prepareSearchScroll(response.getScrollId())
+                    .setScroll(keepAlive)
+                    .execute(sliceListener());
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            fail(e);
+        }
+    }
+
+    private void done() {
+        if (slices.decrementAndGet() == 0) {
+            finish();
+        }
+    }
+
+    /**
+     * Write a page of a slice. Slices write whole pages in turn.
+     *
+     * @return true if the chunk is full
+     */
+    private synchronized boolean write(SearchHit[] hits) throws Exception {
+        if (failed.get()) {
+            return false;
+        }
+        beginSerialization();
+        if (NDJSON.equals(format)) {
+            OutputStream output = getOutputStream();
+            for (SearchHit hit : hits) {
+                XContentBuilder builder = XContentFactory.jsonBuilder(new NonClosingOutputStream(output))
+                        .startObject()
+                        .field("_index", hit.getIndex())
+                        .field("_type", hit.getType())
+                        .field("_id", hit.getId())
+                        .rawField("_source", hit.sourceRef())
+                        .endObject();
+                builder.flush();
+                output.write('\n');
+            }
+        } else {
+            for (SearchHit hit : hits) {
+                record(hit, timestampOf(hit), metadataPrefix);
+            }
+            flush();
+        }
+        return out.size() >= chunkSize;
+    }
+
+    private synchronized void finish() {
+        if (failed.get()) {
+            return;
+        }
+        try {
+            if (!NDJSON.equals(format)) {
+                endElement();
+                endResponse();
+                endDocument();
+            }
+            RestResponse restResponse = response(out, NDJSON.equals(format) ?
+                    NDJSON_CONTENT_TYPE : StreamRestResponse.XML_CONTENT_TYPE);
+            if (!continuation.isEmpty()) {
+                restResponse.addHeader(CONTINUATION_HEADER, Strings.collectionToCommaDelimitedString(continuation));
+            }
+            channel.sendResponse(restResponse);
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Throwable e) {
+        if (failed.compareAndSet(false, true)) {
+            synchronized (this) {
+                out.close();
+                for (String scrollId : continuation) {
+                    clearScroll(scrollId);
+                }
+                continuation.clear();
+            }
+            onFailure(e);
+        }
+    }
+
+    private void clearScroll(String scrollId) {
+        client.prepareClearScroll().addScrollId(scrollId).execute();
+    }
+
+    @Override
+    protected long timestampOf(SearchHit hit) {
+        SearchHitField field = hit.field(OAIServer.TIMESTAMP_FIELD);
+        return field != null ? ((Number) field.getValue()).longValue() : 0L;
+    }
+
+    /**
+     * Keeps the response stream open when a JSON generator is closed or flushed.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
@@ -1,152 +1,905 @@
 package org.xbib.elasticsearch.plugin.rest.oai;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.get.GetField;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestResponse;
 import org.elasticsearch.rest.RestStatus;
-import org.elasticsearch.rest.action.support.RestResponseListener;
 import org.elasticsearch.search.SearchHit;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
+import org.elasticsearch.search.SearchHitField;
+import org.xbib.elasticsearch.oai.MetadataFormat;
+import org.xbib.elasticsearch.oai.MetadataPlan;
+import org.xbib.elasticsearch.oai.MetadataTranscoder;
+import org.xbib.elasticsearch.oai.OAICursor;
+import org.xbib.elasticsearch.oai.OAIServer;
+import org.xbib.elasticsearch.oai.OAIServerException;
+import org.xbib.elasticsearch.oai.OAIStats;
+import org.xbib.elasticsearch.oai.PageSizer;
+import org.xbib.elasticsearch.oai.ResumptionTokenCodec;
+import org.xbib.elasticsearch.oai.Validators;
 import org.xbib.oai.OAIConstants;
-import org.xbib.oai.server.ServerOAIRequest;
+import org.xbib.util.DateUtil;
 import org.xbib.xml.XSI;
 
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.util.XMLEventConsumer;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.TransformerException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.InflaterInputStream;
 
-public class OAIResponseBuilder extends RestResponseListener<SearchResponse> implements OAIConstants {
+public class OAIResponseBuilder implements OAIConstants {
 
-    private final static XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+    private final static Logger logger = LogManager.getLogger(OAIResponseBuilder.class);
 
-    private final static XMLOutputFactory outputfactory  = XMLOutputFactory.newInstance();
+    private final static XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
 
-    private final static DateTimeFormatter formatter = ISODateTimeFormat.dateTimeNoMillis();
+    // the fixed OAI-PMH vocabulary, written as local names in the default namespace
+
+    private final static String OAI_PMH = "OAI-PMH";
+
+    private final static String OAI_PMH_SCHEMA_LOCATION =
+            "http://www.openarchives.org/OAI/2.0/ http://www.openarchives.org/OAI/2.0/OAI-PMH.xsd";
+
+    private final static String SCHEMA_LOCATION = "schemaLocation";
+
+    private final static String RESPONSE_DATE = "responseDate";
+
+    private final static String IDENTIFY = "Identify";
+
+    private final static String LIST_METADATA_FORMATS = "ListMetadataFormats";
+
+    private final static String LIST_SETS = "ListSets";
+
+    private final static String GET_RECORD = "GetRecord";
+
+    private final static String REPOSITORY_NAME = "repositoryName";
+
+    private final static String BASE_URL = "baseURL";
+
+    private final static String PROTOCOL_VERSION = "protocolVersion";
+
+    private final static String ADMIN_EMAIL = "adminEmail";
+
+    private final static String EARLIEST_DATESTAMP = "earliestDatestamp";
+
+    private final static String DELETED_RECORD = "deletedRecord";
+
+    private final static String GRANULARITY = "granularity";
+
+    private final static String METADATA_FORMAT = "metadataFormat";
+
+    private final static String METADATA_PREFIX = "metadataPrefix";
+
+    private final static String SCHEMA = "schema";
+
+    private final static String METADATA_NAMESPACE = "metadataNamespace";
+
+    private final static String SET = "set";
+
+    private final static String SET_NAME = "setName";
+
+    private final static String RECORD = "record";
+
+    private final static String HEADER = "header";
+
+    private final static String METADATA = "metadata";
+
+    private final static String IDENTIFIER = "identifier";
+
+    private final static String DATESTAMP = "datestamp";
+
+    private final static String SET_SPEC = "setSpec";
+
+    private final static String STATUS = "status";
+
+    private final static String DELETED = "deleted";
+
+    private final static String RESUMPTION_TOKEN = "resumptionToken";
+
+    private final static String COMPLETE_LIST_SIZE = "completeListSize";
+
+    private final static String CURSOR = "cursor";
+
+    private final static String ERROR = "error";
+
+    private final static String CODE = "code";
+
+    protected final RestChannel channel;
 
     private final Settings settings;
 
-    private XMLEventConsumer consumer;
+    private XMLStreamWriter writer;
+
+    private OutputStream output;
+
+    private OutputStream encoder;
+
+    private CountingOutputStream counter;
+
+    private BytesStreamOutput fragment;
+
+    private String baseURL;
+
+    private Map<String, Object> parameters;
+
+    private OAICursor cursor;
+
+    private ResumptionTokenCodec tokenCodec;
+
+    private String setField;
+
+    private Validators validators;
 
-    public OAIResponseBuilder(Settings settings, RestChannel channel) {
-        super(channel);
+    private MetadataTranscoder metadataTranscoder;
+
+    private Map<String, MetadataPlan> metadataPlans;
+
+    private boolean negotiated;
+
+    private String contentEncoding;
+
+    private final int compressionLevel;
+
+    private final long maxPageBytes;
+
+    private final long startNanos;
+
+    private long serializationNanos;
+
+    private long records;
+
+    private OAIStats stats;
+
+    private PageSizer pageSizer;
+
+    private String statsIndex;
+
+    private String statsVerb;
+
+    private final BigArrays bigArrays;
+
+    public OAIResponseBuilder(Settings settings, RestChannel channel, BigArrays bigArrays) {
+        this.channel = channel;
         this.settings = settings;
+        this.bigArrays = bigArrays;
+        this.compressionLevel = settings.getAsInt("oai.http.compression_level", 6);
+        this.maxPageBytes = settings.getAsBytesSize("oai.page.max_size",
+                new ByteSizeValue(16, ByteSizeUnit.MB)).bytes();
+        this.startNanos = System.nanoTime();
+    }
+
+    public OAIResponseBuilder setBaseURL(String baseURL) {
+        this.baseURL = baseURL;
+        return this;
+    }
+
+    public OAIResponseBuilder setParameters(Map<String, Object> parameters) {
+        this.parameters = parameters;
+        return this;
+    }
+
+    public OAIResponseBuilder setCursor(OAICursor cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    public OAIResponseBuilder setTokenCodec(ResumptionTokenCodec tokenCodec) {
+        this.tokenCodec = tokenCodec;
+        return this;
+    }
+
+    public OAIResponseBuilder setSetField(String setField) {
+        this.setField = setField;
+        return this;
+    }
+
+    public OAIResponseBuilder setMetadataTranscoder(MetadataTranscoder metadataTranscoder) {
+        this.metadataTranscoder = metadataTranscoder;
+        return this;
+    }
+
+    public OAIResponseBuilder setMetadataPlans(Map<String, MetadataPlan> metadataPlans) {
+        this.metadataPlans = metadataPlans;
+        return this;
+    }
+
+    /**
+     * Negotiate the content encoding of the response.
+     *
+     * @param acceptEncoding the Accept-Encoding header of the request, or null
+     */
+    public OAIResponseBuilder setAcceptEncoding(String acceptEncoding) {
+        this.negotiated = true;
+        this.contentEncoding = ContentEncoding.negotiate(acceptEncoding);
+        return this;
+    }
+
+    public OAIResponseBuilder setStats(OAIStats stats, String index, String verb) {
+        this.stats = stats;
+        this.statsIndex = index;
+        this.statsVerb = verb;
+        return this;
+    }
+
+    /**
+     * Let rendered ListRecords pages update the record size estimates.
+     */
+    public OAIResponseBuilder setPageSizer(PageSizer pageSizer) {
+        this.pageSizer = pageSizer;
+        return this;
+    }
+
+    public OAIResponseBuilder setValidators(Validators validators) {
+        this.validators = validators;
+        return this;
+    }
+
+    /**
+     * Answer a conditional request whose client copy is still valid, without a body.
+     */
+    public void sendNotModified() {
+        channel.sendResponse(withHeaders(new StreamRestResponse(RestStatus.NOT_MODIFIED)));
+    }
+
+    public void onError(OAIServerException e) {
+        beginSerialization();
+        ReleasableBytesStreamOutput out = new ReleasableBytesStreamOutput(bigArrays);
+        try {
+            writeError(e, out);
+            channel.sendResponse(response(out));
+        } catch (Exception ex) {
+            out.close();
+            onFailure(ex);
+        }
+    }
+
+    /**
+     * Render a record without envelope, so it can be cached and copied into later responses.
+     */
+    public BytesReference renderRecord(GetResponse response, String metadataPrefix)
+            throws XMLStreamException, IOException, TransformerException {
+        beginFragment();
+        Map<String, Object> source = response.getSourceAsMap();
+        beginElement(RECORD);
+        header(response.getId(), timestampOf(source),
+                setField != null ? XContentMapValues.extractRawValues(setField, source) : null);
+        metadata(metadataPrefix, valueOf(response.getField(OAIServer.METADATA_PREFIX_FIELD)),
+                valueOf(response.getField(OAIServer.METADATA_FIELD)), response.getSourceAsBytesRef());
+        endElement();
+        return endFragment();
+    }
+
+    /**
+     * Render the record of a deleted identifier from its tombstone, a header without metadata.
+     */
+    public BytesReference renderDeletedRecord(GetResponse response) throws XMLStreamException, IOException {
+        beginFragment();
+        Map<String, Object> source = response.getSourceAsMap();
+        beginElement(RECORD);
+        header(response.getId(), timestampOf(source),
+                setField != null ? XContentMapValues.extractRawValues(setField, source) : null, true);
+        endElement();
+        return endFragment();
+    }
+
+    /**
+     * Render the Identify elements after the base URL, so the fragment does not depend on the request.
+     * It is sent by {@link #sendIdentify(String, BytesReference)}.
+     */
+    public BytesReference renderIdentify(String adminEmail, long earliestDatestamp, String deletedRecord)
+            throws XMLStreamException, IOException {
+        beginFragment();
+        element(PROTOCOL_VERSION, "2.0");
+        element(ADMIN_EMAIL, adminEmail);
+        element(EARLIEST_DATESTAMP, earliestDatestamp);
+        element(DELETED_RECORD, deletedRecord);
+        element(GRANULARITY, "YYYY-MM-DDThh:mm:ssZ");
+        return endFragment();
+    }
+
+    public BytesReference renderListMetadataFormats(Collection<MetadataFormat> metadataFormats)
+            throws XMLStreamException, IOException {
+        beginFragment();
+        beginElement(LIST_METADATA_FORMATS);
+        for (MetadataFormat metadataFormat : metadataFormats) {
+            beginElement(METADATA_FORMAT);
+            element(METADATA_PREFIX, metadataFormat.getPrefix());
+            element(SCHEMA, metadataFormat.getSchema());
+            element(METADATA_NAMESPACE, metadataFormat.getNamespace());
+            endElement();
+        }
+        endElement();
+        return endFragment();
+    }
+
+    public BytesReference renderListSets(Collection<String> setSpecs) throws XMLStreamException, IOException {
+        beginFragment();
+        if (setSpecs.isEmpty()) {
+            error("noSetHierarchy", "this repository does not support sets");
+        } else {
+            beginElement(LIST_SETS);
+            for (String setSpec : setSpecs) {
+                beginElement(SET);
+                element(SET_SPEC, setSpec);
+                element(SET_NAME, setSpec);
+                endElement();
+            }
+            endElement();
+        }
+        return endFragment();
+    }
+
+    public void sendRecord(BytesReference record) {
+        records = 1;
+        sendFragment(GET_RECORD, record);
+    }
+
+    /**
+     * Send an Identify response with the repository name and the base URL of this request,
+     * followed by a fragment rendered by {@link #renderIdentify(String, long, String)}.
+     */
+    public void sendIdentify(String repositoryName, BytesReference fragment) {
+        Map<String, String> leading = new LinkedHashMap<>();
+        leading.put(REPOSITORY_NAME, repositoryName);
+        leading.put(BASE_URL, baseURL);
+        sendFragment(IDENTIFY, leading, fragment);
+    }
+
+    /**
+     * Send a response with a rendered fragment copied into the envelope.
+     *
+     * @param name the name of the element wrapping the fragment, or null
+     * @param fragment the rendered fragment
+     */
+    public void sendFragment(String name, BytesReference fragment) {
+        sendFragment(name, Collections.<String, String>emptyMap(), fragment);
+    }
+
+    private void sendFragment(String name, Map<String, String> leading, BytesReference fragment) {
+        beginSerialization();
+        ReleasableBytesStreamOutput out = new ReleasableBytesStreamOutput(bigArrays);
+        try {
+            setOutputStream(encode(out));
+            beginDocument();
+            beginResponse(baseURL, parameters);
+            if (name != null) {
+                beginElement(name);
+                for (Map.Entry<String, String> element : leading.entrySet()) {
+                    element(element.getKey(), element.getValue());
+                }
+                // close the pending start tag before copying the fragment
+                writer.writeCharacters("");
+            }
+            writer.flush();
+            fragment.writeTo(output);
+            if (name != null) {
+                endElement();
+            }
+            endResponse();
+            endDocument();
+            channel.sendResponse(response(out));
+        } catch (Exception ex) {
+            out.close();
+            onFailure(ex);
+        }
+    }
+
+    /**
+     * Send an error response for a failure that is not an OAI error.
+     */
+    public void onFailure(Throwable e) {
+        try {
+            channel.sendResponse(new StreamRestResponse(channel, e));
+        } catch (Throwable t) {
+            logger.error("failed to send failure response", t);
+        }
     }
 
     protected Settings settings() {
         return settings;
     }
 
-    @Override
-    public RestResponse buildResponse(SearchResponse response) throws Exception {
-        return buildResponse(response, channel.bytesOutput());
+    private void writeResponse(SearchResponse response, ReleasableBytesStreamOutput out) throws Exception {
+        SearchHit[] hits = response.getHits().getHits();
+        setOutputStream(encode(out));
+        beginDocument();
+        beginResponse(baseURL, parameters);
+        if (hits.length == 0 && !cursor.isResumed()) {
+            error("noRecordsMatch", "no records match");
+        } else {
+            boolean headersOnly = "ListIdentifiers".equals(cursor.getVerb());
+            beginElement(cursor.getVerb());
+            int count = 0;
+            while (count < hits.length) {
+                SearchHit hit = hits[count++];
+                if (headersOnly) {
+                    header(hit);
+                } else {
+                    record(hit, timestampOf(hit), cursor.getMetadataPrefix());
+                }
+                flush();
+                if (counter.getCount() >= maxPageBytes) {
+                    // the response body is held in memory, end the page early and resume after the last record
+                    break;
+                }
+            }
+            // the query excludes all records before the cursor, so total hits count the remaining records
+            long remaining = response.getHits().getTotalHits();
+            if (count > 0 && remaining > count) {
+                resumptionToken(next(hits, count), remaining);
+            } else if (cursor.isResumed()) {
+                resumptionToken(null, remaining);
+            }
+            endElement();
+        }
+        endResponse();
+        endDocument();
+    }
+
+    /**
+     * Wrap the response pages into an encoder for the negotiated content encoding, so the response
+     * is compressed while it is written, and never as a whole.
+     */
+    protected OutputStream encode(ReleasableBytesStreamOutput out) {
+        this.encoder = contentEncoding != null ? ContentEncoding.encoder(contentEncoding, out, compressionLevel) : out;
+        // count in front of the encoder, the page sizer estimates the uncompressed size of records
+        this.counter = new CountingOutputStream(encoder);
+        return counter;
+    }
+
+    private RestResponse response(ReleasableBytesStreamOutput out) throws IOException {
+        return response(out, StreamRestResponse.XML_CONTENT_TYPE);
+    }
+
+    protected RestResponse response(ReleasableBytesStreamOutput out, String contentType) throws IOException {
+        endOutput(out);
+        recordStats(out.size());
+        return withHeaders(new StreamRestResponse(RestStatus.OK, contentType, out));
     }
 
-    protected RestResponse buildResponse(SearchResponse response, BytesStreamOutput out) throws Exception {
-        if (response.getHits().getHits().length > 0) {
-            for (SearchHit hits : response.getHits()) {
-                // TODO
+    /**
+     * Send a page that was rendered by {@link #renderPage(SearchResponse)} for this request alone.
+     * The recycled pages are handed to the HTTP layer without copying and are released after they
+     * have been written to the channel.
+     */
+    public void sendPage(ReleasableBytesStreamOutput page) {
+        beginSerialization();
+        recordStats(page.size());
+        channel.sendResponse(withHeaders(new StreamRestResponse(RestStatus.OK, StreamRestResponse.XML_CONTENT_TYPE,
+                page)));
+    }
+
+    /**
+     * Send a copy of a page that was rendered by {@link #renderPage(SearchResponse)}, possibly for
+     * another request with the same arguments and content encoding.
+     */
+    public void sendPage(BytesReference page) {
+        beginSerialization();
+        recordStats(page.length());
+        channel.sendResponse(withHeaders(new StreamRestResponse(RestStatus.OK, StreamRestResponse.XML_CONTENT_TYPE,
+                page, true)));
+    }
+
+    /**
+     * Serialize a page record by record into recycled pages. The caller owns the pages and must release them.
+     */
+    public ReleasableBytesStreamOutput renderPage(SearchResponse response) throws Exception {
+        beginSerialization();
+        ReleasableBytesStreamOutput out = new ReleasableBytesStreamOutput(bigArrays);
+        boolean success = false;
+        try {
+            writeResponse(response, out);
+            endOutput(out);
+            if (pageSizer != null && LIST_RECORDS.equals(cursor.getVerb())) {
+                pageSizer.update(cursor.getIndex(), counter.getCount(), System.nanoTime() - serializationNanos, records);
             }
+            success = true;
+            return out;
+        } finally {
+            if (!success) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Serialize an error into recycled pages. The caller owns the pages and must release them.
+     */
+    public ReleasableBytesStreamOutput renderErrorPage(OAIServerException e) throws XMLStreamException, IOException {
+        beginSerialization();
+        ReleasableBytesStreamOutput out = new ReleasableBytesStreamOutput(bigArrays);
+        boolean success = false;
+        try {
+            writeError(e, out);
+            endOutput(out);
+            success = true;
+            return out;
+        } finally {
+            if (!success) {
+                out.close();
+            }
+        }
+    }
+
+    private void writeError(OAIServerException e, ReleasableBytesStreamOutput out)
+            throws XMLStreamException, IOException {
+        setOutputStream(encode(out));
+        beginDocument();
+        beginResponse(baseURL, parameters);
+        error(e.getCode(), e.getMessage());
+        endResponse();
+        endDocument();
+    }
+
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    private void endOutput(ReleasableBytesStreamOutput out) throws IOException {
+        if (encoder != out) {
+            // write the trailer of the encoder, the pages stay open
+            encoder.close();
+        }
+    }
+
+    private void recordStats(long bytes) {
+        if (stats != null) {
+            long now = System.nanoTime();
+            long serializationStart = serializationNanos != 0L ? serializationNanos : now;
+            stats.record(statsIndex, statsVerb, serializationStart - startNanos, now - serializationStart,
+                    records, bytes, cursor != null ? cursor.getDepth() : 0);
         }
-        return new BytesRestResponse(RestStatus.OK, "text/xml; charset=UTF-8", out.bytes());
+    }
+
+    private RestResponse withHeaders(RestResponse restResponse) {
+        if (contentEncoding != null) {
+            restResponse.addHeader("Content-Encoding", contentEncoding);
+        }
+        if (negotiated) {
+            restResponse.addHeader("Vary", "Accept-Encoding");
+        }
+        return withValidators(restResponse);
+    }
+
+    private RestResponse withValidators(RestResponse restResponse) {
+        if (validators != null) {
+            restResponse.addHeader("ETag", validators.getETag());
+        }
+        return restResponse;
     }
 
     protected OAIResponseBuilder setOutputStream(OutputStream out) throws XMLStreamException {
-        this.consumer = outputfactory.createXMLEventWriter(out);
+        this.writer = outputFactory.createXMLStreamWriter(out, "UTF-8");
+        this.output = out;
+        return this;
+    }
+
+    /**
+     * Mark the end of searching and the begin of serialization, for the statistics.
+     */
+    protected void beginSerialization() {
+        if (serializationNanos == 0L) {
+            serializationNanos = System.nanoTime();
+        }
+    }
+
+    protected OutputStream getOutputStream() {
+        return output;
+    }
+
+    protected OAIResponseBuilder beginFragment() throws XMLStreamException {
+        this.fragment = new BytesStreamOutput();
+        setOutputStream(fragment);
         return this;
     }
 
+    protected BytesReference endFragment() throws XMLStreamException {
+        writer.close();
+        BytesReference bytes = fragment.bytes().toBytesArray();
+        this.fragment = null;
+        return bytes;
+    }
+
     protected OAIResponseBuilder beginDocument() throws XMLStreamException {
-        consumer.add(eventFactory.createStartDocument());
+        writer.writeStartDocument("UTF-8", "1.0");
         return this;
     }
 
     protected OAIResponseBuilder endDocument() throws XMLStreamException, IOException {
-        consumer.add(eventFactory.createEndDocument());
+        writer.writeEndDocument();
+        writer.close();
+        return this;
+    }
+
+    protected OAIResponseBuilder flush() throws XMLStreamException {
+        writer.flush();
         return this;
     }
 
     protected OAIResponseBuilder beginElement(String name) throws XMLStreamException {
-        consumer.add(eventFactory.createStartElement(toQName(NS_URI, name), null, null));
+        writer.writeStartElement(name);
         return this;
     }
 
-    protected OAIResponseBuilder endElement(String name) throws XMLStreamException {
-        consumer.add(eventFactory.createEndElement(toQName(NS_URI, name), null));
+    protected OAIResponseBuilder endElement() throws XMLStreamException {
+        writer.writeEndElement();
         return this;
     }
 
     protected OAIResponseBuilder element(String name) throws XMLStreamException {
-        consumer.add(eventFactory.createStartElement(toQName(NS_URI, name), null, null));
-        consumer.add(eventFactory.createEndElement(toQName(NS_URI, name), null));
+        writer.writeEmptyElement(name);
         return this;
     }
 
     protected OAIResponseBuilder element(String name, String value) throws XMLStreamException {
-        consumer.add(eventFactory.createStartElement(toQName(NS_URI, name), null, null));
-        consumer.add(eventFactory.createCharacters(value));
-        consumer.add(eventFactory.createEndElement(toQName(NS_URI, name), null));
+        writer.writeStartElement(name);
+        writer.writeCharacters(value);
+        writer.writeEndElement();
         return this;
     }
 
-    protected OAIResponseBuilder element(String name, Date value) throws XMLStreamException {
-        consumer.add(eventFactory.createStartElement(toQName(NS_URI, name), null, null));
-        consumer.add(eventFactory.createCharacters(formatter.print(value.getTime())));
-        consumer.add(eventFactory.createEndElement(toQName(NS_URI, name), null));
+    protected OAIResponseBuilder element(String name, long millis) throws XMLStreamException {
+        writer.writeStartElement(name);
+        writer.writeCharacters(OAIDateFormat.format(millis), 0, OAIDateFormat.LENGTH);
+        writer.writeEndElement();
         return this;
     }
 
-    protected OAIResponseBuilder beginResponse(String baseURL, ServerOAIRequest serverOAIRequest) throws XMLStreamException {
-        consumer.add(eventFactory.createStartElement(toQName(NS_URI, "OAI-PMH"), null, null));
-        consumer.add(eventFactory.createNamespace(NS_URI));
-        consumer.add(eventFactory.createNamespace(XSI.NS_PREFIX, XSI.NS_URI));
-        consumer.add(eventFactory.createAttribute(XSI.NS_PREFIX, XSI.NS_URI,
-                "schemaLocation", "http://www.openarchives.org/OAI/2.0/ http://www.openarchives.org/OAI/2.0/OAI-PMH.xsd"));
-        element("responseDate", new Date());
-        request(serverOAIRequest.getParameterMap(), baseURL);
+    protected OAIResponseBuilder beginResponse() throws XMLStreamException {
+        return beginResponse(baseURL, parameters);
+    }
+
+    protected OAIResponseBuilder beginResponse(String baseURL, Map<String, Object> parameters) throws XMLStreamException {
+        writer.writeStartElement(OAI_PMH);
+        writer.writeDefaultNamespace(NS_URI);
+        writer.writeNamespace(XSI.NS_PREFIX, XSI.NS_URI);
+        writer.writeAttribute(XSI.NS_PREFIX, XSI.NS_URI, SCHEMA_LOCATION, OAI_PMH_SCHEMA_LOCATION);
+        element(RESPONSE_DATE, System.currentTimeMillis());
+        request(parameters, baseURL);
         return this;
     }
 
     protected OAIResponseBuilder endResponse() throws XMLStreamException {
-        consumer.add(eventFactory.createEndElement(toQName(NS_URI, "OAI-PMH"), null));
+        writer.writeEndElement();
         return this;
     }
 
     protected OAIResponseBuilder request(Map<String,Object> attrs, String baseURL) throws XMLStreamException {
-        consumer.add(eventFactory.createStartElement(toQName(NS_URI, REQUEST), null, null));
+        writer.writeStartElement(REQUEST);
         for (Map.Entry<String,Object> me : attrs.entrySet()) {
             Object o = me.getValue();
             if (!(o instanceof List)) {
                 o = Arrays.asList(o);
             }
             for (Object value : (List)o) {
-                consumer.add(eventFactory.createAttribute(me.getKey(),value.toString()));
+                writer.writeAttribute(me.getKey(), value.toString());
             }
         }
-        consumer.add(eventFactory.createCharacters(baseURL));
-        consumer.add(eventFactory.createEndElement(toQName(NS_URI, REQUEST), null));
+        writer.writeCharacters(baseURL);
+        writer.writeEndElement();
         return this;
     }
 
-    protected QName toQName(String namespaceUri, String qname) {
-        int i = qname.indexOf(':');
-        if (i == -1) {
-            return new QName(namespaceUri, qname);
+    protected OAIResponseBuilder header(SearchHit hit) throws XMLStreamException {
+        return header(hit, timestampOf(hit));
+    }
+
+    protected OAIResponseBuilder header(SearchHit hit, long timestamp) throws XMLStreamException {
+        SearchHitField sets = setField != null ? hit.field(setField) : null;
+        return header(hit.getId(), timestamp, sets != null ? sets.getValues() : null,
+                OAIServer.isTombstoneIndex(hit.getIndex()));
+    }
+
+    /**
+     * Write a record. A hit from a tombstone index is a deleted record, which has a header but no metadata.
+     */
+    protected OAIResponseBuilder record(SearchHit hit, long timestamp, String metadataPrefix)
+            throws XMLStreamException, IOException, TransformerException {
+        beginElement(RECORD);
+        header(hit, timestamp);
+        if (OAIServer.isTombstoneIndex(hit.getIndex())) {
+            endElement();
+            return this;
+        }
+        metadata(metadataPrefix, valueOf(hit.field(OAIServer.METADATA_PREFIX_FIELD)),
+                valueOf(hit.field(OAIServer.METADATA_FIELD)), hit.sourceRef());
+        endElement();
+        return this;
+    }
+
+    protected OAIResponseBuilder header(String identifier, long timestamp, List<Object> sets) throws XMLStreamException {
+        return header(identifier, timestamp, sets, false);
+    }
+
+    protected OAIResponseBuilder header(String identifier, long timestamp, List<Object> sets, boolean deleted)
+            throws XMLStreamException {
+        records++;
+        beginElement(HEADER);
+        if (deleted) {
+            writer.writeAttribute(STATUS, DELETED);
+        }
+        element(IDENTIFIER, identifier);
+        element(DATESTAMP, timestamp);
+        if (sets != null) {
+            for (Object set : sets) {
+                element(SET_SPEC, set.toString());
+            }
+        }
+        endElement();
+        return this;
+    }
+
+    /**
+     * Write the metadata of a record. A metadata block that was pre-rendered by the feeder in the requested
+     * format is inflated straight into the underlying output, and a format with a stylesheet is transcoded
+     * from the source into the underlying output. In both cases, the writer is flushed before, so the writer
+     * never sees the metadata. Otherwise, the mapping plan of the format writes the source to the writer.
+     */
+    protected OAIResponseBuilder metadata(String metadataPrefix, Object storedPrefix, Object storedMetadata,
+                                          BytesReference source)
+            throws XMLStreamException, IOException, TransformerException {
+        BytesReference stored = storedMetadata != null && metadataPrefix != null
+                && metadataPrefix.equals(storedPrefix) ? bytesOf(storedMetadata) : null;
+        boolean transcode = stored == null && source != null
+                && metadataTranscoder != null && metadataTranscoder.canTranscode(metadataPrefix);
+        MetadataPlan plan = stored == null && !transcode && source != null && metadataPlans != null
+                && metadataPrefix != null ? metadataPlans.get(metadataPrefix) : null;
+        if (stored == null && !transcode && plan == null) {
+            return this;
+        }
+        beginElement(METADATA);
+        if (plan != null) {
+            plan.write(writer, source);
         } else {
-            String prefix = qname.substring(0, i);
-            String localPart = qname.substring(i + 1);
-            return new QName(namespaceUri, localPart, prefix);
+            // close the pending start tag before streaming the metadata
+            writer.writeCharacters("");
+            writer.flush();
+            if (stored != null) {
+                inflate(stored, output);
+            } else {
+                metadataTranscoder.transcode(metadataPrefix, source, output);
+            }
+        }
+        endElement();
+        return this;
+    }
+
+    protected OAIResponseBuilder resumptionToken(OAICursor next, long remaining) throws XMLStreamException {
+        writer.writeStartElement(RESUMPTION_TOKEN);
+        writer.writeAttribute(COMPLETE_LIST_SIZE, Long.toString(cursor.getPosition() + remaining));
+        writer.writeAttribute(CURSOR, Long.toString(cursor.getPosition()));
+        if (next != null) {
+            writer.writeCharacters(tokenCodec.encode(next));
+        }
+        writer.writeEndElement();
+        return this;
+    }
+
+    protected OAIResponseBuilder error(String code, String message) throws XMLStreamException {
+        writer.writeStartElement(ERROR);
+        writer.writeAttribute(CODE, code);
+        writer.writeCharacters(message);
+        writer.writeEndElement();
+        return this;
+    }
+
+    private static void inflate(BytesReference bytes, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        try (InflaterInputStream in = new InflaterInputStream(bytes.streamInput())) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+    }
+
+    private static BytesReference bytesOf(Object value) {
+        if (value instanceof BytesReference) {
+            return (BytesReference) value;
+        }
+        if (value instanceof byte[]) {
+            return new BytesArray((byte[]) value);
+        }
+        return null;
+    }
+
+    private static Object valueOf(SearchHitField field) {
+        return field != null ? field.getValue() : null;
+    }
+
+    private static Object valueOf(GetField field) {
+        return field != null ? field.getValue() : null;
+    }
+
+    /**
+     * The cursor after the delivered hits, with the uids of all hits at the end of the page that share
+     * the timestamp and sequence of the last hit.
+     */
+    private OAICursor next(SearchHit[] hits, int count) {
+        SearchHit last = hits[count - 1];
+        long timestamp = timestampOf(last);
+        long sequence = sequenceOf(last);
+        int first = count - 1;
+        while (first > 0 && timestampOf(hits[first - 1]) == timestamp && sequenceOf(hits[first - 1]) == sequence) {
+            first--;
+        }
+        List<String> uids = new ArrayList<>(count - first);
+        for (int i = first; i < count; i++) {
+            uids.add(uidOf(hits[i]));
+        }
+        return cursor.next(count, timestamp, sequence, uids);
+    }
+
+    protected long timestampOf(SearchHit hit) {
+        return ((Number) hit.getSortValues()[0]).longValue();
+    }
+
+    protected long sequenceOf(SearchHit hit) {
+        return ((Number) hit.getSortValues()[1]).longValue();
+    }
+
+    protected long timestampOf(Map<String, Object> source) {
+        Object o = XContentMapValues.extractValue(OAIServer.TIMESTAMP_FIELD, source);
+        Date date = o != null ? DateUtil.parseDateISO(o.toString()) : null;
+        return date != null ? date.getTime() : 0L;
+    }
+
+    protected String uidOf(SearchHit hit) {
+        return hit.getType() + "#" + hit.getId();
+    }
+
+    /**
+     * Counts the bytes written to a stream.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
         }
     }
 }
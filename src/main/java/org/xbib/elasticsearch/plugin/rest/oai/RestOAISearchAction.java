@@ -1,41 +1,88 @@
 package org.xbib.elasticsearch.plugin.rest.oai;
 
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchAction;
 import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.ThreadedActionListener;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.min.Min;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.xbib.elasticsearch.oai.MetadataFormat;
+import org.xbib.elasticsearch.oai.OAIAdmission;
+import org.xbib.elasticsearch.oai.OAICursor;
 import org.xbib.elasticsearch.oai.OAIServer;
-import org.xbib.oai.OAIDateResolution;
+import org.xbib.elasticsearch.oai.OAIServerException;
+import org.xbib.elasticsearch.oai.RecordCache;
+import org.xbib.elasticsearch.oai.Validators;
 import org.xbib.oai.exceptions.OAIException;
-import org.xbib.oai.server.listrecords.ListRecordsServerRequest;
-import org.xbib.oai.util.ResumptionToken;
 import org.xbib.util.DateUtil;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.elasticsearch.rest.RestRequest.Method.GET;
 import static org.elasticsearch.rest.RestRequest.Method.POST;
 
 public class RestOAISearchAction extends BaseRestHandler {
 
+    private final static String[] OAI_PARAMETERS = {
+            "verb", "identifier", "metadataPrefix", "from", "until", "set", "resumptionToken"
+    };
+
+    private final static String DUMP_PATH = "/_oai/dump";
+
+    private final static String STATS_PATH = "/_oai/_stats";
+
     private final OAIServer oaiServer;
 
+    private final BigArrays bigArrays;
+
+    private final ThreadPool threadPool;
+
+    private final boolean conditional;
+
+    private final boolean compression;
+
     @Inject
     public RestOAISearchAction(Settings settings, Client client, RestController controller,
-                               OAIServer oaiServer) {
+                               OAIServer oaiServer, BigArrays bigArrays, ThreadPool threadPool) {
         super(settings, controller, client);
         this.oaiServer = oaiServer;
+        this.bigArrays = bigArrays;
+        this.threadPool = threadPool;
+        this.conditional = settings.getAsBoolean("oai.http.conditional", true);
+        this.compression = settings.getAsBoolean("oai.http.compression", true);
         controller.registerHandler(GET, "/_oai", this);
         controller.registerHandler(POST, "/_oai", this);
         controller.registerHandler(GET, "/{index}/_oai", this);
         controller.registerHandler(POST, "/{index}/_oai", this);
         controller.registerHandler(GET, "/{index}/{type}/_oai", this);
         controller.registerHandler(POST, "/{index}/{type}/_oai", this);
+        controller.registerHandler(GET, "/{index}/_oai/dump", this);
+        controller.registerHandler(GET, "/_oai/_stats", this);
         controller.registerHandler(GET, "/_oai/template", this);
         controller.registerHandler(POST, "/_search_arrayformat/template", this);
         controller.registerHandler(GET, "/{index}/_search_arrayformat/template", this);
@@ -44,40 +91,522 @@ public class RestOAISearchAction extends BaseRestHandler {
         controller.registerHandler(POST, "/{index}/{type}/_search_arrayformat/template", this);
     }
 
+    /**
+     * Admit a request, and process it in the OAI thread pool. Clients over their limit of requests in flight,
+     * and requests that find the queue of the pool full, are rejected with 503 and Retry-After.
+     */
     @Override
     public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) {
-        String verb = oaiServer.verbOf(request);
-        OAIResponseBuilder builder = new OAIResponseBuilder(settings, channel);
+        if (request.path().equals(STATS_PATH)) {
+            stats(channel);
+            return;
+        }
+        final OAIAdmission admission = oaiServer.getAdmission();
+        final String clientAddress = admission.clientOf(request);
+        if (!admission.tryAcquire(clientAddress)) {
+            sendUnavailable(channel, admission);
+            return;
+        }
+        final RestChannel releasingChannel = admission.releasing(channel, clientAddress);
+        try {
+            threadPool.executor(OAIAdmission.THREAD_POOL).execute(() -> {
+                // every request must get a response, or its client permit is never released
+                try {
+                    process(request, releasingChannel, client);
+                } catch (Exception e) {
+                    logger.error("failed to process OAI request {}", e, request.uri());
+                    releasingChannel.sendResponse(new StreamRestResponse(RestStatus.INTERNAL_SERVER_ERROR,
+                            String.valueOf(e.getMessage())));
+                }
+            });
+        } catch (EsRejectedExecutionException e) {
+            sendUnavailable(releasingChannel, admission);
+        }
+    }
+
+    private void stats(RestChannel channel) {
+        try {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            builder.field("in_flight", oaiServer.getAdmission().inFlight());
+            oaiServer.getStats().toXContent(builder, ToXContent.EMPTY_PARAMS);
+            builder.endObject();
+            channel.sendResponse(new StreamRestResponse(RestStatus.OK, builder));
+        } catch (IOException e) {
+            channel.sendResponse(new StreamRestResponse(RestStatus.INTERNAL_SERVER_ERROR, e.getMessage()));
+        }
+    }
+
+    private void sendUnavailable(RestChannel channel, OAIAdmission admission) {
+        RestResponse response = new StreamRestResponse(RestStatus.SERVICE_UNAVAILABLE,
+                "too many OAI requests, retry later");
+        response.addHeader("Retry-After", Long.toString(Math.max(1L, admission.getRetryAfter().seconds())));
+        channel.sendResponse(response);
+    }
+
+    private void process(final RestRequest request, final RestChannel channel, final Client client) {
+        if (request.path().endsWith(DUMP_PATH)) {
+            dump(request, channel, client);
+            return;
+        }
+        final String verb = oaiServer.verbOf(request);
+        final String baseURL = baseURLOf(request);
+        final Map<String, Object> parameters = parametersOf(request);
+        final OAIResponseBuilder builder = new OAIResponseBuilder(settings, channel, bigArrays)
+                .setBaseURL(baseURL)
+                .setParameters(parameters)
+                .setTokenCodec(oaiServer.getTokenCodec())
+                .setSetField(oaiServer.getSetField())
+                .setMetadataTranscoder(oaiServer.getMetadataTranscoder())
+                .setMetadataPlans(oaiServer.getMetadataPlans());
+        if (compression) {
+            builder.setAcceptEncoding(request.header("Accept-Encoding"));
+        }
+        // the representation differs per content encoding, so the entity tag must differ too
+        final String representation = baseURL + parameters + ";" + builder.getContentEncoding();
+        if ("GetRecord".equals(verb)) {
+            // a record is validated by its version, the refresh counts of the index are not needed
+            try {
+                getRecord(request, client, representation, builder);
+            } catch (OAIServerException e) {
+                builder.onError(e);
+            } catch (Exception e) {
+                builder.onFailure(e);
+            }
+            return;
+        }
+        // the refresh counts are fetched once and serve validation, index pruning, and the response cache
+        oaiServer.refreshCounts(request.param("index"), new ActionListener<Map<String, Long>>() {
+            @Override
+            public void onResponse(final Map<String, Long> refreshCounts) {
+                // statistics are kept for existing indices only, so arbitrary index names can not grow them
+                if (request.param("index") == null || !refreshCounts.isEmpty()) {
+                    builder.setStats(oaiServer.getStats(), request.param("index"), verb);
+                }
+                if (!conditional) {
+                    handleVerb(request, client, verb, refreshCounts, builder);
+                    return;
+                }
+                if (notModified(request, oaiServer.validators(refreshCounts, representation), builder)) {
+                    return;
+                }
+                handleVerb(request, client, verb, refreshCounts, builder);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                builder.onFailure(e);
+            }
+        });
+    }
+
+    private void handleVerb(RestRequest request, Client client, String verb,
+                            Map<String, Long> refreshCounts, OAIResponseBuilder builder) {
         try {
             switch (verb) {
                 case "ListRecords": {
+                    OAICursor cursor = makeListCursor(request, verb,
+                            oaiServer.getPageSizer().pageSize(request.param("index")));
+                    builder.setPageSizer(oaiServer.getPageSizer());
+                    SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(client, SearchAction.INSTANCE);
+                    oaiServer.listRecords(cursor, searchRequestBuilder);
+                    searchList(client, refreshCounts, cursor, searchRequestBuilder, builder.setCursor(cursor));
+                    break;
+                }
+                case "ListIdentifiers": {
+                    OAICursor cursor = makeListCursor(request, verb, oaiServer.getListIdentifiersSize());
                     SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(client, SearchAction.INSTANCE);
-                    oaiServer.listRecords(makeListRecordsRequest(request), searchRequestBuilder);
-                    client.search(searchRequestBuilder.request(), builder);
+                    oaiServer.listIdentifiers(cursor, searchRequestBuilder);
+                    searchList(client, refreshCounts, cursor, searchRequestBuilder, builder.setCursor(cursor));
+                    break;
+                }
+                case "Identify": {
+                    identify(request, client, refreshCounts, builder);
+                    break;
+                }
+                case "ListMetadataFormats": {
+                    builder.sendFragment(null,
+                            builder.renderListMetadataFormats(oaiServer.getMetadataFormats().values()));
+                    break;
+                }
+                case "ListSets": {
+                    listSets(request, client, refreshCounts, builder);
                     break;
                 }
                 default: {
-                    builder.onFailure(new IllegalStateException("unknown verb: " + verb));
+                    builder.onError(new OAIServerException("badVerb", "unknown verb: " + verb));
                     break;
                 }
             }
-        } catch (OAIException e) {
+        } catch (OAIServerException e) {
+            builder.onError(e);
+        } catch (Exception e) {
             builder.onFailure(e);
         }
     }
 
-    private ListRecordsServerRequest makeListRecordsRequest(RestRequest restRequest) {
+    /**
+     * Dump a whole index in chunks, read by parallel scrolls over its shards, or continue a dump.
+     */
+    private void dump(final RestRequest request, final RestChannel restChannel, final Client client) {
+        OAIAdmission admission = oaiServer.getAdmission();
+        if (!admission.tryAcquireDump()) {
+            sendUnavailable(restChannel, admission);
+            return;
+        }
+        RestChannel channel = admission.releasingDump(restChannel);
+        OAIDump dump = new OAIDump(settings, channel, bigArrays, client, threadPool)
+                .setFormat(request.param("format", OAIDump.XML))
+                .setMetadataPrefix(request.param("metadataPrefix", MetadataFormat.OAI_DC));
+        dump.setBaseURL(baseURLOf(request))
+                .setParameters(parametersOf(request))
+                .setSetField(oaiServer.getSetField())
+                .setMetadataTranscoder(oaiServer.getMetadataTranscoder())
+                .setMetadataPlans(oaiServer.getMetadataPlans())
+                .setStats(oaiServer.getStats(), request.param("index"), "dump");
+        if (compression) {
+            dump.setAcceptEncoding(request.header("Accept-Encoding"));
+        }
+        try {
+            oaiServer.checkMetadataPrefix(dump.getMetadataPrefix());
+        } catch (OAIServerException e) {
+            dump.onError(e);
+            return;
+        }
+        if (request.hasParam("continuation")) {
+            dump.resume(request.param("continuation"));
+            return;
+        }
+        Integer shard;
+        try {
+            shard = shardOf(request);
+        } catch (OAIServerException e) {
+            dump.onError(e);
+            return;
+        }
+        dump.dump(request.param("index"), request.param("type"), shard);
+    }
+
+    private static Integer shardOf(RestRequest request) throws OAIServerException {
+        String shard = request.param("shard");
+        if (shard == null) {
+            return null;
+        }
+        try {
+            int n = Integer.parseInt(shard);
+            if (n >= 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new OAIServerException("badArgument", "illegal shard: " + shard);
+    }
+
+    /**
+     * Search only the concrete time-window indices that may hold records of the requested date range.
+     * Identical requests in flight share one search and one rendered page.
+     */
+    private void searchList(final Client client, final Map<String, Long> refreshCounts, final OAICursor cursor,
+                            final SearchRequestBuilder searchRequestBuilder, final OAIResponseBuilder builder) {
+        String key = cursor + "/" + builder.getContentEncoding() + "/" + builder.getBaseURL() + "/"
+                + oaiServer.changeMarker(refreshCounts);
+        oaiServer.coalescedPage(key, listener -> oaiServer.resolveIndices(refreshCounts, cursor.getIndex(),
+                cursor.getFrom(), cursor.getUntil(), new ActionListener<String[]>() {
+                    @Override
+                    public void onResponse(String[] indices) {
+                        if (indices.length == 0 && cursor.getIndex() != null) {
+                            try {
+                                listener.onResponse(builder.renderErrorPage(
+                                        new OAIServerException("noRecordsMatch", "no records match")));
+                            } catch (Exception e) {
+                                listener.onFailure(e);
+                            }
+                            return;
+                        }
+                        if (indices.length > 0) {
+                            searchRequestBuilder.setIndices(indices);
+                        }
+                        // render the page in the OAI pool, not in the search pool
+                        client.search(searchRequestBuilder.request(), new ThreadedActionListener<>(logger, threadPool,
+                                OAIAdmission.THREAD_POOL, new ActionListener<SearchResponse>() {
+                                    @Override
+                                    public void onResponse(SearchResponse response) {
+                                        try {
+                                            listener.onResponse(builder.renderPage(response));
+                                        } catch (Exception e) {
+                                            listener.onFailure(e);
+                                        }
+                                    }
+
+                                    @Override
+                                    public void onFailure(Throwable e) {
+                                        listener.onFailure(e);
+                                    }
+                                }));
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        listener.onFailure(e);
+                    }
+                }), new OAIServer.PageListener() {
+                    @Override
+                    public void onResponse(BytesReference page) {
+                        builder.sendPage(page);
+                    }
+
+                    @Override
+                    public void onPage(ReleasableBytesStreamOutput page) {
+                        builder.sendPage(page);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        builder.onFailure(e);
+                    }
+                });
+    }
+
+    private void identify(final RestRequest request, final Client client, final Map<String, Long> refreshCounts,
+                          final OAIResponseBuilder builder) {
+        final String index = request.param("index");
+        final String type = request.param("type");
+        // the base URL is written when the response is sent, so the fragment can be shared by all hosts
+        String key = "Identify/" + index + "/" + type;
+        oaiServer.cachedResponse(refreshCounts, key, listener -> {
+            SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(client, SearchAction.INSTANCE);
+            oaiServer.identify(index, type, searchRequestBuilder);
+            client.search(searchRequestBuilder.request(), new ActionListener<SearchResponse>() {
+                @Override
+                public void onResponse(SearchResponse response) {
+                    try {
+                        Min min = response.getAggregations().get(OAIServer.EARLIEST_DATESTAMP);
+                        long earliestDatestamp = Double.isInfinite(min.getValue()) ? 0L : (long) min.getValue();
+                        listener.onResponse(builder.renderIdentify(
+                                settings.get("oai.repository.admin_email", "admin@localhost"),
+                                earliestDatestamp,
+                                oaiServer.getDeletedRecord()));
+                    } catch (Exception e) {
+                        listener.onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    listener.onFailure(e);
+                }
+            });
+        }, new ActionListener<BytesReference>() {
+            @Override
+            public void onResponse(BytesReference fragment) {
+                builder.sendIdentify(settings.get("oai.repository.name", index != null ? index : "elasticsearch"),
+                        fragment);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                builder.onFailure(e);
+            }
+        });
+    }
+
+    private void listSets(final RestRequest request, final Client client, final Map<String, Long> refreshCounts,
+                          final OAIResponseBuilder builder) {
+        final String index = request.param("index");
+        final String type = request.param("type");
+        String key = "ListSets/" + index + "/" + type;
+        oaiServer.cachedResponse(refreshCounts, key, listener -> {
+            SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(client, SearchAction.INSTANCE);
+            oaiServer.listSets(index, type, searchRequestBuilder);
+            client.search(searchRequestBuilder.request(), new ActionListener<SearchResponse>() {
+                @Override
+                public void onResponse(SearchResponse response) {
+                    try {
+                        Terms terms = response.getAggregations().get(OAIServer.SETS);
+                        List<String> setSpecs = new ArrayList<>();
+                        for (Terms.Bucket bucket : terms.getBuckets()) {
+                            setSpecs.add(bucket.getKeyAsString());
+                        }
+                        listener.onResponse(builder.renderListSets(oaiServer.withAncestors(setSpecs)));
+                    } catch (Exception e) {
+                        listener.onFailure(e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    listener.onFailure(e);
+                }
+            });
+        }, fragmentListener(builder));
+    }
+
+    private static ActionListener<BytesReference> fragmentListener(final OAIResponseBuilder builder) {
+        return new ActionListener<BytesReference>() {
+            @Override
+            public void onResponse(BytesReference fragment) {
+                builder.sendFragment(null, fragment);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                builder.onFailure(e);
+            }
+        };
+    }
+
+    /**
+     * Set the validators of a response, and answer a conditional request whose client copy is still valid.
+     *
+     * @return true if the request is answered
+     */
+    private boolean notModified(RestRequest request, Validators validators, OAIResponseBuilder builder) {
+        builder.setValidators(validators);
+        if (validators.notModified(request.header("If-None-Match"))) {
+            builder.sendNotModified();
+            return true;
+        }
+        return false;
+    }
+
+    private void getRecord(final RestRequest request, final Client client, final String representation,
+                           final OAIResponseBuilder builder) throws OAIException {
+        final String index = request.param("index");
+        final String type = request.param("type");
+        final String identifier = request.param("identifier");
+        final String metadataPrefix = request.param("metadataPrefix");
+        oaiServer.checkMetadataPrefix(metadataPrefix);
+        GetRequestBuilder versionRequestBuilder = new GetRequestBuilder(client, GetAction.INSTANCE);
+        oaiServer.getRecord(index, type, identifier, false, versionRequestBuilder);
+        final GetRequestBuilder recordRequestBuilder = new GetRequestBuilder(client, GetAction.INSTANCE);
+        oaiServer.getRecord(index, type, identifier, true, recordRequestBuilder);
+        final RecordCache recordCache = oaiServer.getRecordCache();
+        client.get(versionRequestBuilder.request(), new ActionListener<GetResponse>() {
+            @Override
+            public void onResponse(GetResponse response) {
+                if (!response.isExists()) {
+                    getTombstone(request, client, representation, builder);
+                    return;
+                }
+                // the index exists, statistics are kept for existing indices only
+                builder.setStats(oaiServer.getStats(), index, "GetRecord");
+                if (conditional && notModified(request, oaiServer.validators(response, representation), builder)) {
+                    return;
+                }
+                BytesReference record = recordCache.get(RecordCache.key(response.getIndex(), response.getId(),
+                        metadataPrefix, response.getVersion()));
+                if (record != null) {
+                    builder.sendRecord(record);
+                    return;
+                }
+                client.get(recordRequestBuilder.request(), new ActionListener<GetResponse>() {
+                    @Override
+                    public void onResponse(GetResponse response) {
+                        if (!response.isExists()) {
+                            builder.onError(new OAIServerException("idDoesNotExist", "unknown identifier: " + identifier));
+                            return;
+                        }
+                        try {
+                            BytesReference record = builder.renderRecord(response, metadataPrefix);
+                            recordCache.put(RecordCache.key(response.getIndex(), response.getId(),
+                                    metadataPrefix, response.getVersion()), record);
+                            builder.sendRecord(record);
+                        } catch (Exception e) {
+                            builder.onFailure(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        builder.onFailure(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                builder.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * Answer GetRecord of an identifier that is not in the index from its tombstone, if there is one.
+     */
+    private void getTombstone(final RestRequest request, final Client client, final String representation,
+                              final OAIResponseBuilder builder) {
+        final String index = request.param("index");
+        final String type = request.param("type");
+        final String identifier = request.param("identifier");
+        GetRequestBuilder getRequestBuilder = new GetRequestBuilder(client, GetAction.INSTANCE);
+        oaiServer.getTombstone(index, type, identifier, getRequestBuilder);
+        client.get(getRequestBuilder.request(), new ActionListener<GetResponse>() {
+            @Override
+            public void onResponse(GetResponse response) {
+                if (!response.isExists()) {
+                    builder.onError(new OAIServerException("idDoesNotExist", "unknown identifier: " + identifier));
+                    return;
+                }
+                builder.setStats(oaiServer.getStats(), index, "GetRecord");
+                if (conditional && notModified(request, oaiServer.validators(response, representation), builder)) {
+                    return;
+                }
+                try {
+                    builder.sendRecord(builder.renderDeletedRecord(response));
+                } catch (Exception e) {
+                    builder.onFailure(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                // without tombstone index, the identifier is just unknown
+                builder.onError(new OAIServerException("idDoesNotExist", "unknown identifier: " + identifier));
+            }
+        });
+    }
+
+    private OAICursor makeListCursor(RestRequest restRequest, String verb, int size) throws OAIException {
+        String token = restRequest.param("resumptionToken");
+        if (token != null) {
+            // the token is an exclusive argument and carries the complete harvest state
+            OAICursor cursor = oaiServer.getTokenCodec().decode(token);
+            String index = restRequest.param("index");
+            if (!verb.equals(cursor.getVerb()) || (index != null && !index.equals(cursor.getIndex()))) {
+                throw new OAIServerException("badResumptionToken", "resumption token is not valid for this request");
+            }
+            return cursor;
+        }
         Date from = DateUtil.parseDateISO(restRequest.param("from"));
         Date until = DateUtil.parseDateISO(restRequest.param("until"));
         String set = restRequest.param("set");
         String metadataPrefix = restRequest.param("metadataPrefix");
-        ResumptionToken token = ResumptionToken.newToken(restRequest.param("resumptionToken"));
-        return new ListRecordsServerRequest()
-                .setResumptionToken(token)
-                .setFrom(from, OAIDateResolution.SECOND)
-                .setUntil(until, OAIDateResolution.SECOND)
+        oaiServer.checkMetadataPrefix(metadataPrefix);
+        return new OAICursor()
+                .setVerb(verb)
+                .setIndex(restRequest.param("index"))
+                .setType(restRequest.param("type"))
+                .setFrom(from)
+                .setUntil(until)
                 .setSet(set)
-                .setMetadataPrefix(metadataPrefix);
+                .setMetadataPrefix(metadataPrefix)
+                .setSize(size);
+    }
+
+    private String baseURLOf(RestRequest restRequest) {
+        String host = restRequest.header("Host");
+        return host != null ? "http://" + host + restRequest.path() : restRequest.path();
+    }
+
+    private Map<String, Object> parametersOf(RestRequest restRequest) {
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        for (String name : OAI_PARAMETERS) {
+            if (restRequest.hasParam(name)) {
+                parameters.put(name, restRequest.param(name));
+            }
+        }
+        return parameters;
     }
 
 }
@@ -4,6 +4,7 @@ package org.xbib.elasticsearch.plugin.rest.oai;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestRequest;
@@ -18,6 +19,8 @@ public class StreamRestResponse extends RestResponse {
 
     public static final String TEXT_CONTENT_TYPE = "text/plain; charset=UTF-8";
 
+    public static final String XML_CONTENT_TYPE = "text/xml; charset=UTF-8";
+
     private final RestStatus status;
     private final BytesReference content;
     private final boolean contentThreadSafe;
@@ -65,6 +68,14 @@ public class StreamRestResponse extends RestResponse {
         this.contentType = contentType;
     }
 
+    /**
+     * Creates a response from recycled pages. The pages are passed to the channel as they are,
+     * and are given back to the page recycler when the channel has written them.
+     */
+    public StreamRestResponse(RestStatus status, String contentType, ReleasableBytesStreamOutput out) {
+        this(status, contentType, out.bytes(), false);
+    }
+
     public StreamRestResponse(RestChannel channel, Throwable t) throws IOException {
         this(channel, ((t instanceof ElasticsearchException) ? ((ElasticsearchException) t).status() : RestStatus.INTERNAL_SERVER_ERROR), t);
     }
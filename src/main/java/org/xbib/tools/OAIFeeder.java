@@ -3,19 +3,22 @@ package org.xbib.tools;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
 import org.xbib.elasticsearch.helper.client.LongAdderIngestMetric;
 import org.xbib.oai.OAIConstants;
-import org.xbib.oai.OAIDateResolution;
-import org.xbib.oai.client.OAIClient;
-import org.xbib.oai.client.OAIClientFactory;
-import org.xbib.oai.client.listrecords.ListRecordsListener;
-import org.xbib.oai.client.listrecords.ListRecordsRequest;
 import org.xbib.oai.rdf.RdfResourceHandler;
+import org.xbib.oai.util.RecordHeader;
 import org.xbib.oai.xml.SimpleMetadataHandler;
 import org.xbib.iri.namespace.IRINamespaceContext;
 import org.xbib.rdf.RdfContentBuilder;
 import org.xbib.rdf.RdfContentParams;
+import org.xbib.rdf.Resource;
 import org.xbib.rdf.content.RouteRdfXContentParams;
 import org.xbib.rdf.io.ntriple.NTripleContentParams;
 import org.xbib.util.DateUtil;
@@ -25,12 +28,45 @@ import org.xbib.util.concurrent.Worker;
 import org.xbib.util.concurrent.WorkerProvider;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
 
 import static org.xbib.rdf.content.RdfXContentFactory.routeRdfXContentBuilder;
 
@@ -41,6 +77,23 @@ public class OAIFeeder extends TimewindowFeeder {
 
     private final static Logger logger = LogManager.getLogger(OAIFeeder.class);
 
+    private final static XMLOutputFactory outputFactory = repairingOutputFactory();
+
+    private final static XMLInputFactory inputFactory = secureInputFactory();
+
+    private final static SAXParserFactory saxParserFactory = saxParserFactory();
+
+    private final static Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    /**
+     * The identifiers indexed so far by all set streams, so records in more than one set are indexed once.
+     */
+    private final static Set<String> seenIdentifiers = ConcurrentHashMap.newKeySet();
+
+    private static BlockingQueue<URIWorkerRequest> harvestQueue;
+
+    private static ExecutorService mappers;
+
     private static String index;
 
     private static String concreteIndex;
@@ -84,49 +137,332 @@ public class OAIFeeder extends TimewindowFeeder {
                     .build(), new LongAdderIngestMetric());
         }
         super.prepareSink();
+        if (settings.getAsInt("prefetch.depth", 2) > 0 && mappers == null) {
+            mappers = Executors.newFixedThreadPool(settings.getAsInt("prefetch.threads",
+                    Runtime.getRuntime().availableProcessors()));
+        }
+    }
+
+    @Override
+    protected OAIFeeder cleanup() throws IOException {
+        if (mappers != null) {
+            mappers.shutdown();
+            try {
+                if (!mappers.awaitTermination(settings.getAsTime("prefetch.timeout",
+                        TimeValue.timeValueMinutes(1)).millis(), TimeUnit.MILLISECONDS)) {
+                    logger.warn("mappers did not terminate, records may be missing");
+                    mappers.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                mappers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            // the next run of the feeder in this JVM starts a new pool
+            mappers = null;
+        }
+        seenIdentifiers.clear();
+        super.cleanup();
+        return this;
+    }
+
+    /**
+     * With {@code sets.enabled}, fan out each ListRecords URI into one URI per set of the repository,
+     * as found by ListSets. With {@code slices.enabled}, split the date range of each ListRecords URI
+     * into {@code slices.count} sub-windows. Either way, the workers of the pipeline harvest one endpoint
+     * in parallel. Slices that turn out to be dense are split again while they are harvested.
+     */
+    @Override
+    protected void prepareSource() throws IOException {
+        super.prepareSource();
+        boolean bySet = settings.getAsBoolean("sets.enabled", false);
+        boolean bySlice = settings.getAsBoolean("slices.enabled", false);
+        if (bySet || bySlice) {
+            int count = bySlice ? settings.getAsInt("slices.count", settings.getAsInt("concurrency", 1)) : 1;
+            Set<URI> uris = new LinkedHashSet<>();
+            URIWorkerRequest request;
+            while ((request = getQueue().poll()) != null) {
+                for (URI uri : bySet ? sets(request.get()) : Collections.singletonList(request.get())) {
+                    uris.addAll(slices(uri, count));
+                }
+            }
+            harvestQueue = new LinkedBlockingQueue<>();
+            for (URI uri : uris) {
+                offer(uri);
+            }
+            logger.info("{} harvest requests queued", uris.size());
+            setQueue(harvestQueue);
+        }
     }
 
     @Override
     protected void process(URI uri) throws Exception {
+        if (harvestQueue == null) {
+            harvest(uri);
+            return;
+        }
+        // slices and set streams of the same endpoint share a limited number of connections
+        Semaphore permits = hostPermits.computeIfAbsent(uri.getHost(),
+                host -> new Semaphore(settings.getAsInt("slices.perhost", 2)));
+        permits.acquire();
+        try {
+            harvest(uri);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Harvest a ListRecords URI page by page. The HTTP body of each page is parsed as it arrives, and the
+     * metadata of each record is passed to the metadata handler, so no page is held in memory as a whole.
+     */
+    protected void harvest(URI uri) throws Exception {
         Map<String, String> params = URIUtil.parseQueryString(uri);
-        String server = uri.toString();
         String verb = params.get("verb");
         String metadataPrefix = params.get("metadataPrefix");
-        String set = params.get("set");
-        Date from = DateUtil.parseDateISO(params.get("from"));
-        Date until = DateUtil.parseDateISO(params.get("until"));
-        final OAIClient client = OAIClientFactory.newClient(server);
-        client.setTimeout(settings.getAsInt("timeout", 60000));
-        if (!verb.equals(OAIConstants.LIST_RECORDS)) {
+        if (!OAIConstants.LIST_RECORDS.equals(verb)) {
             logger.warn("no verb {}, returning", OAIConstants.LIST_RECORDS);
             return;
         }
-        ListRecordsRequest request = client.newListRecordsRequest()
-                .setMetadataPrefix(metadataPrefix)
-                .setSet(set)
-                .setFrom(from, OAIDateResolution.DAY)
-                .setUntil(until, OAIDateResolution.DAY);
-        do {
+        String s = uri.toString();
+        int pos = s.indexOf('?');
+        String baseURL = pos > 0 ? s.substring(0, pos) : s;
+        boolean splitDense = harvestQueue != null && settings.getAsBoolean("slices.enabled", false);
+        int maxRecords = settings.getAsInt("slices.maxrecords", 10000);
+        // pages whose records are still mapped and indexed while the next page is fetched
+        PageQueue pages = mappers != null ? new PageQueue(settings.getAsInt("prefetch.depth", 2)) : null;
+        URL url = uri.toURL();
+        boolean first = true;
+        while (url != null) {
+            logger.info("OAI request: {}", url);
+            ListRecordsReader reader;
+            PageQueue.Page page = pages != null ? pages.begin() : null;
             try {
-                request.addHandler(newMetadataHandler());
-                ListRecordsListener listener = new ListRecordsListener(request);
-                logger.info("OAI request: {}", request);
-                request.prepare().execute(listener).waitFor();
-                if (listener.getResponse() != null) {
-                    logger.debug("got OAI response");
-                    StringWriter w = new StringWriter();
-                    listener.getResponse().to(w);
-                    logger.debug("{}", w);
-                    request = client.resume(request, listener.getResumptionToken());
-                } else {
-                    logger.debug("no valid OAI response");
-                }
+                reader = new ListRecordsReader(newMetadataHandler(metadataPrefix, page));
+                read(url, reader);
             } catch (IOException e) {
-                logger.error(e.getMessage(), e);
-                request = null;
+                logger.error(url + ": " + e.getMessage(), e);
+                break;
+            } finally {
+                if (page != null) {
+                    page.end();
+                }
+            }
+            if (reader.getError() != null) {
+                if (!"noRecordsMatch".equals(reader.getError())) {
+                    logger.warn("ListRecords error at {}: {}", url, reader.getError());
+                }
+                break;
+            }
+            if (first && splitDense && reader.getResumptionToken() != null
+                    && reader.getCompleteListSize() > maxRecords) {
+                List<URI> slices = slices(uri, 2);
+                if (slices.size() > 1) {
+                    // the records of the first page are indexed again by the first half, by the same id
+                    logger.info("{} records in slice {}, splitting", reader.getCompleteListSize(), uri);
+                    for (URI slice : slices) {
+                        offer(slice);
+                    }
+                    break;
+                }
+            }
+            first = false;
+            logger.debug("{} records, resumption token {}", reader.getRecords(), reader.getResumptionToken());
+            url = reader.getResumptionToken() != null ? new URL(baseURL + "?verb=" + OAIConstants.LIST_RECORDS
+                    + "&resumptionToken=" + URLEncoder.encode(reader.getResumptionToken(), "UTF-8")) : null;
+        }
+        // the harvest is complete when all of its pages are indexed
+        if (pages != null) {
+            pages.await();
+        }
+    }
+
+    /**
+     * Read a ListRecords response from the body of the HTTP connection into the reader. An endpoint that
+     * answers with 503 and a {@code Retry-After} header is asked again after the given seconds.
+     */
+    private void read(URL url, ListRecordsReader reader) throws IOException, InterruptedException {
+        int timeout = settings.getAsInt("timeout", 60000);
+        int retries = settings.getAsInt("retries", 10);
+        while (true) {
+            URLConnection connection = url.openConnection();
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection httpConnection = (HttpURLConnection) connection;
+                String retryAfter = httpConnection.getHeaderField("Retry-After");
+                if (httpConnection.getResponseCode() == HttpURLConnection.HTTP_UNAVAILABLE && retryAfter != null
+                        && retries-- > 0) {
+                    httpConnection.disconnect();
+                    long seconds = retryAfter.trim().matches("\\d+") ? Long.parseLong(retryAfter.trim()) : 10L;
+                    logger.info("{} is unavailable, retrying after {} seconds", url, seconds);
+                    Thread.sleep(seconds * 1000L);
+                    continue;
+                }
+            }
+            try (InputStream in = connection.getInputStream()) {
+                saxParserFactory.newSAXParser().parse(in, reader);
+            } catch (ParserConfigurationException | SAXException e) {
+                throw new IOException(e);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Split the date range of a ListRecords URI into at most count slices of whole days. URIs without
+     * from date, or with a range of a single day, are not split.
+     */
+    protected List<URI> slices(URI uri, int count) throws IOException {
+        Map<String, String> params = URIUtil.parseQueryString(uri);
+        if (!OAIConstants.LIST_RECORDS.equals(params.get("verb")) || params.get("from") == null) {
+            return Collections.singletonList(uri);
+        }
+        LocalDate from = dayOf(DateUtil.parseDateISO(params.get("from")));
+        LocalDate until = params.get("until") != null ?
+                dayOf(DateUtil.parseDateISO(params.get("until"))) : LocalDate.now(ZoneOffset.UTC);
+        long days = until.toEpochDay() - from.toEpochDay() + 1;
+        if (count < 2 || days < 2) {
+            return Collections.singletonList(uri);
+        }
+        int n = (int) Math.min(count, days);
+        List<URI> slices = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            slices.add(withDateRange(uri, params, from.plusDays(days * i / n),
+                    from.plusDays(days * (i + 1) / n - 1)));
+        }
+        return slices;
+    }
+
+    /**
+     * One ListRecords URI for each set of the repository. URIs that already select a set, and
+     * repositories without sets, are not fanned out.
+     */
+    protected List<URI> sets(URI uri) throws IOException {
+        Map<String, String> params = URIUtil.parseQueryString(uri);
+        if (!OAIConstants.LIST_RECORDS.equals(params.get("verb")) || params.get("set") != null) {
+            return Collections.singletonList(uri);
+        }
+        List<String> setSpecs = listSets(uri);
+        logger.info("{} sets found at {}", setSpecs.size(), uri);
+        if (setSpecs.isEmpty()) {
+            return Collections.singletonList(uri);
+        }
+        List<URI> uris = new ArrayList<>(setSpecs.size());
+        for (String setSpec : setSpecs) {
+            Map<String, String> setParams = new LinkedHashMap<>(params);
+            setParams.put("set", setSpec);
+            uris.add(withParams(uri, setParams));
+        }
+        return uris;
+    }
+
+    /**
+     * The set specs of a repository, read by ListSets with a streaming parser, following resumption tokens.
+     * A repository without set hierarchy answers with an error and has no sets.
+     */
+    protected List<String> listSets(URI uri) throws IOException {
+        String s = uri.toString();
+        int pos = s.indexOf('?');
+        String baseURL = pos > 0 ? s.substring(0, pos) : s;
+        int timeout = settings.getAsInt("timeout", 60000);
+        List<String> setSpecs = new ArrayList<>();
+        String token = null;
+        do {
+            URLConnection connection = new URL(baseURL + "?verb=ListSets" +
+                    (token != null ? "&resumptionToken=" + URLEncoder.encode(token, "UTF-8") : "")).openConnection();
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            token = null;
+            try (InputStream in = connection.getInputStream()) {
+                XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+                while (reader.hasNext()) {
+                    if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    String name = reader.getLocalName();
+                    if ("setSpec".equals(name)) {
+                        setSpecs.add(reader.getElementText().trim());
+                    } else if ("resumptionToken".equals(name)) {
+                        String value = reader.getElementText().trim();
+                        token = value.isEmpty() ? null : value;
+                    } else if ("error".equals(name)) {
+                        logger.warn("ListSets error at {}: {}", baseURL, reader.getAttributeValue(null, "code"));
+                    }
+                }
+                reader.close();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
             }
-        } while (request != null);
-        client.close();
+        } while (token != null);
+        return setSpecs;
+    }
+
+    private static void offer(URI uri) {
+        URIWorkerRequest request = new URIWorkerRequest();
+        request.set(uri);
+        harvestQueue.offer(request);
+    }
+
+    /**
+     * The stored metadata XML is cut out of the OAI envelope, so bindings declared on ancestors of the
+     * metadata block would be lost. A repairing writer declares every binding it uses that is not in scope.
+     */
+    private static XMLOutputFactory repairingOutputFactory() {
+        XMLOutputFactory factory = XMLOutputFactory.newInstance();
+        factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
+        return factory;
+    }
+
+    /**
+     * Responses of remote endpoints are parsed without DTDs and external entities, so a response
+     * can not make the feeder read local files or other URLs.
+     */
+    private static XMLInputFactory secureInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    /**
+     * A namespace aware parser factory that does not load external DTDs or entities of a response.
+     */
+    private static SAXParserFactory saxParserFactory() {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IllegalStateException(e);
+        }
+        return factory;
+    }
+
+    private static LocalDate dayOf(Date date) {
+        return date.toInstant().atZone(ZoneOffset.UTC).toLocalDate();
+    }
+
+    private static URI withDateRange(URI uri, Map<String, String> params, LocalDate from, LocalDate until)
+            throws IOException {
+        Map<String, String> rangeParams = new LinkedHashMap<>(params);
+        rangeParams.put("from", from.toString());
+        rangeParams.put("until", until.toString());
+        return withParams(uri, rangeParams);
+    }
+
+    private static URI withParams(URI uri, Map<String, String> params) throws IOException {
+        String s = uri.toString();
+        int pos = s.indexOf('?');
+        StringBuilder sb = new StringBuilder(pos > 0 ? s.substring(0, pos) : s);
+        char separator = '?';
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            sb.append(separator).append(param.getKey()).append('=')
+                    .append(URLEncoder.encode(param.getValue(), "UTF-8"));
+            separator = '&';
+        }
+        return URI.create(sb.toString());
     }
 
     protected RdfResourceHandler rdfResourceHandler() {
@@ -135,7 +471,19 @@ public class OAIFeeder extends TimewindowFeeder {
     }
 
     protected SimpleMetadataHandler newMetadataHandler() {
-        return new OAISimpleMetadataHandler();
+        return newMetadataHandler(null);
+    }
+
+    protected SimpleMetadataHandler newMetadataHandler(String metadataPrefix) {
+        return new OAISimpleMetadataHandler(metadataPrefix, null);
+    }
+
+    /**
+     * A metadata handler that hands each record to the mappers as soon as it is parsed, if a page is given.
+     */
+    protected SimpleMetadataHandler newMetadataHandler(String metadataPrefix, PageQueue.Page page) {
+        return page != null ? new OAISimpleMetadataHandler(metadataPrefix, page) :
+                newMetadataHandler(metadataPrefix);
     }
 
     protected String map(String id, String content) throws IOException {
@@ -153,13 +501,276 @@ public class OAIFeeder extends TimewindowFeeder {
         }
     }
 
+    /**
+     * The pages of a harvest whose records are mapped and indexed by the mapper pool. Records are handed
+     * to the pool as soon as they are parsed. At most {@code prefetch.depth} pages of a harvest are
+     * in the pool, so the harvest waits before fetching another page when indexing falls behind.
+     */
+    protected static class PageQueue {
+
+        private final Semaphore permits;
+
+        private final int depth;
+
+        PageQueue(int depth) {
+            this.depth = depth;
+            this.permits = new Semaphore(depth);
+        }
+
+        /**
+         * Begin a page, wait while {@code prefetch.depth} pages are in the pool.
+         */
+        Page begin() throws InterruptedException {
+            permits.acquire();
+            return new Page();
+        }
+
+        /**
+         * Wait until all pages are indexed.
+         */
+        void await() throws InterruptedException {
+            permits.acquire(depth);
+            permits.release(depth);
+        }
+
+        protected class Page {
+
+            // the parser holds the page until it ends
+            private final AtomicInteger pending = new AtomicInteger(1);
+
+            void submit(final Runnable record) {
+                pending.incrementAndGet();
+                try {
+                    mappers.execute(() -> {
+                        try {
+                            record.run();
+                        } finally {
+                            done();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    done();
+                    throw e;
+                }
+            }
+
+            void end() {
+                done();
+            }
+
+            private void done() {
+                if (pending.decrementAndGet() == 0) {
+                    permits.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a ListRecords response from SAX events. The events inside the metadata element of a record
+     * are passed to the metadata handler, one document per record, after the handler has got the header.
+     * The resumption token and errors are kept for the harvest.
+     */
+    protected static class ListRecordsReader extends DefaultHandler {
+
+        private final SimpleMetadataHandler handler;
+
+        private final StringBuilder text;
+
+        private final Map<String, String> prefixMappings;
+
+        private int depth;
+
+        private int metadataDepth;
+
+        private boolean inHeader;
+
+        private RecordHeader header;
+
+        private String resumptionToken;
+
+        private long completeListSize;
+
+        private String error;
+
+        private long records;
+
+        ListRecordsReader(SimpleMetadataHandler handler) {
+            this.handler = handler;
+            this.text = new StringBuilder();
+            this.prefixMappings = new LinkedHashMap<>();
+        }
+
+        String getResumptionToken() {
+            return resumptionToken;
+        }
+
+        long getCompleteListSize() {
+            return completeListSize;
+        }
+
+        String getError() {
+            return error;
+        }
+
+        long getRecords() {
+            return records;
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            if (metadataDepth > 0) {
+                if (depth > metadataDepth) {
+                    handler.startPrefixMapping(prefix, uri);
+                } else {
+                    // declared on the root element of the metadata, passed after the document is started
+                    prefixMappings.put(prefix, uri);
+                }
+            }
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            if (metadataDepth > 0 && depth > metadataDepth) {
+                handler.endPrefixMapping(prefix);
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            depth++;
+            if (metadataDepth > 0) {
+                if (depth == metadataDepth + 1) {
+                    handler.setHeader(header);
+                    handler.startDocument();
+                    for (Map.Entry<String, String> prefixMapping : prefixMappings.entrySet()) {
+                        handler.startPrefixMapping(prefixMapping.getKey(), prefixMapping.getValue());
+                    }
+                    prefixMappings.clear();
+                }
+                handler.startElement(uri, localName, qName, attributes);
+                return;
+            }
+            text.setLength(0);
+            switch (localName) {
+                case "record":
+                    header = new RecordHeader();
+                    break;
+                case "header":
+                    inHeader = true;
+                    break;
+                case "metadata":
+                    metadataDepth = depth;
+                    break;
+                case "resumptionToken":
+                    String size = attributes.getValue("completeListSize");
+                    completeListSize = size != null && size.matches("\\d+") ? Long.parseLong(size) : 0L;
+                    break;
+                case "error":
+                    error = attributes.getValue("code");
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            depth--;
+            if (metadataDepth > 0) {
+                if (depth == metadataDepth - 1) {
+                    // the end of the metadata element
+                    metadataDepth = 0;
+                    prefixMappings.clear();
+                    return;
+                }
+                handler.endElement(uri, localName, qName);
+                if (depth == metadataDepth) {
+                    handler.endDocument();
+                    records++;
+                }
+                return;
+            }
+            switch (localName) {
+                case "header":
+                    inHeader = false;
+                    break;
+                case "identifier":
+                    if (inHeader && header != null) {
+                        header.setIdentifier(text.toString().trim());
+                    }
+                    break;
+                case "resumptionToken":
+                    String token = text.toString().trim();
+                    resumptionToken = token.isEmpty() ? null : token;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (metadataDepth > 0) {
+                if (depth > metadataDepth) {
+                    handler.characters(ch, start, length);
+                }
+                return;
+            }
+            text.append(ch, start, length);
+        }
+    }
+
     public class OAISimpleMetadataHandler extends SimpleMetadataHandler {
 
         private final IRINamespaceContext namespaceContext;
 
+        private final String metadataPrefix;
+
+        private final boolean storeMetadata;
+
+        private final Map<String, String> prefixMappings;
+
+        private final PageQueue.Page page;
+
+        private final boolean direct;
+
+        private final Map<String, List<String>> values;
+
+        private final StringBuilder text;
+
+        private final BytesStreamOutput buffer;
+
+        private int depth;
+
         private RdfResourceHandler handler;
 
+        private ByteArrayOutputStream metadata;
+
+        private DeflaterOutputStream deflater;
+
+        private XMLStreamWriter writer;
+
         public OAISimpleMetadataHandler() {
+            this(null, null);
+        }
+
+        public OAISimpleMetadataHandler(String metadataPrefix) {
+            this(metadataPrefix, null);
+        }
+
+        public OAISimpleMetadataHandler(String metadataPrefix, PageQueue.Page page) {
+            this.metadataPrefix = metadataPrefix;
+            this.page = page;
+            // keep the harvested XML, so the server can serve it without rendering the source again
+            this.storeMetadata = settings.getAsBoolean("storemetadata", false);
+            this.prefixMappings = new LinkedHashMap<>();
+            // flat formats can be mapped from the SAX events to JSON without building an RDF resource
+            this.direct = Arrays.asList(settings.getAsArray("directmapping")).contains(metadataPrefix);
+            this.values = direct ? new LinkedHashMap<>() : null;
+            this.text = direct ? new StringBuilder() : null;
+            this.buffer = direct ? new BytesStreamOutput() : null;
             namespaceContext = IRINamespaceContext.newInstance();
             namespaceContext.addNamespace("", "http://www.openarchives.org/OAI/2.0/oai_dc/");
             namespaceContext.addNamespace("dc", "http://purl.org/dc/elements/1.1/");
@@ -167,56 +778,259 @@ public class OAIFeeder extends TimewindowFeeder {
 
         @Override
         public void startDocument() throws SAXException {
-            this.handler = rdfResourceHandler();
-            handler.setDefaultNamespace("", "http://www.openarchives.org/OAI/2.0/oai_dc/");
-            handler.startDocument();
+            if (direct) {
+                values.clear();
+                depth = 0;
+            } else {
+                this.handler = rdfResourceHandler();
+                handler.setDefaultNamespace("", "http://www.openarchives.org/OAI/2.0/oai_dc/");
+                handler.startDocument();
+            }
+            if (storeMetadata) {
+                try {
+                    this.metadata = new ByteArrayOutputStream();
+                    this.deflater = new DeflaterOutputStream(metadata);
+                    this.writer = outputFactory.createXMLStreamWriter(deflater, "UTF-8");
+                } catch (XMLStreamException e) {
+                    throw new SAXException(e);
+                }
+            }
         }
 
         @Override
         public void endDocument() throws SAXException {
-            handler.endDocument();
-            try {
-                RouteRdfXContentParams params = new RouteRdfXContentParams(namespaceContext,
-                        getConcreteIndex(), getType());
-                params.setHandler((content, p) -> {
-                    content = map(getHeader().getIdentifier(), content);
-                    if (settings.getAsBoolean("mock", false)) {
-                        logger.info("{}", content);
-                    } else {
-                        ingest.index(p.getIndex(), p.getType(), getHeader().getIdentifier(), content);
+            if (handler != null) {
+                handler.endDocument();
+            }
+            final String storedMetadata = storeMetadata ? endMetadata() : null;
+            final String identifier = getHeader().getIdentifier();
+            if (settings.getAsBoolean("sets.enabled", false) && seenIdentifiers.contains(identifier)) {
+                // already indexed by the stream of another set
+                return;
+            }
+            if (direct) {
+                try {
+                    index(identifier, directContent(), storedMetadata);
+                } catch (IOException e) {
+                    logger.error(e.getMessage(), e);
+                    throw new SAXException(e);
+                }
+                return;
+            }
+            final Resource resource = handler.getResource();
+            if (page != null) {
+                // the parser moves on to the next record while this one is mapped and indexed
+                page.submit(() -> {
+                    try {
+                        index(identifier, resource, storedMetadata);
+                    } catch (IOException e) {
+                        logger.error(identifier + ": " + e.getMessage(), e);
                     }
                 });
-                RdfContentBuilder builder = routeRdfXContentBuilder(params);
-                builder.receive(handler.getResource());
+                return;
+            }
+            try {
+                index(identifier, resource, storedMetadata);
             } catch (IOException e) {
                 logger.error(e.getMessage(), e);
                 throw new SAXException(e);
             }
         }
 
+        private void index(String identifier, Resource resource, String storedMetadata) throws IOException {
+            RouteRdfXContentParams params = new RouteRdfXContentParams(namespaceContext,
+                    getConcreteIndex(), getType());
+            params.setHandler((content, p) -> index(p.getIndex(), p.getType(), identifier, content, storedMetadata));
+            RdfContentBuilder builder = routeRdfXContentBuilder(params);
+            builder.receive(resource);
+        }
+
+        private void index(String identifier, String content, String storedMetadata) throws IOException {
+            index(getConcreteIndex(), getType(), identifier, content, storedMetadata);
+        }
+
+        private void index(String index, String type, String identifier, String content, String storedMetadata)
+                throws IOException {
+            content = map(identifier, content);
+            Map<String, Object> fields = new LinkedHashMap<>();
+            if (storedMetadata != null) {
+                fields.put("xbib:metadata", storedMetadata);
+                if (metadataPrefix != null) {
+                    fields.put("xbib:metadataPrefix", metadataPrefix);
+                }
+            }
+            fields.put(SEQUENCE_FIELD, sequenceOf(identifier));
+            content = withFields(content, fields);
+            if (settings.getAsBoolean("mock", false)) {
+                logger.info("{}", content);
+            } else {
+                ingest.index(index, type, identifier, content);
+            }
+            if (settings.getAsBoolean("sets.enabled", false)) {
+                // marked only when indexed, a record that failed is indexed by the stream of another set
+                seenIdentifiers.add(identifier);
+            }
+        }
+
+        /**
+         * The JSON document of the collected element values, in the shape of the RDF route: one field per
+         * element name with namespace prefix, a single value as string and repeated values as array.
+         * The document is written into a buffer that is reused for all records of the handler.
+         */
+        private String directContent() throws IOException {
+            buffer.reset();
+            XContentBuilder builder = XContentFactory.jsonBuilder(buffer).startObject();
+            for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+                List<String> list = entry.getValue();
+                if (list.size() == 1) {
+                    builder.field(entry.getKey(), list.get(0));
+                } else {
+                    builder.field(entry.getKey(), list);
+                }
+            }
+            builder.endObject().flush();
+            return buffer.bytes().toUtf8();
+        }
+
+        private String fieldName(String ns, String localname, String qname) {
+            String prefix = ns != null && !ns.isEmpty() ? namespaceContext.getPrefix(ns) : null;
+            return prefix != null && !prefix.isEmpty() ? prefix + ":" + localname : qname;
+        }
+
         @Override
         public void startPrefixMapping(String string, String string1) throws SAXException {
-            handler.startPrefixMapping(string, string1);
+            if (handler != null) {
+                handler.startPrefixMapping(string, string1);
+            }
+            if (writer != null) {
+                prefixMappings.put(string, string1);
+            }
         }
 
         @Override
         public void endPrefixMapping(String string) throws SAXException {
-            handler.endPrefixMapping(string);
+            if (handler != null) {
+                handler.endPrefixMapping(string);
+            }
         }
 
         @Override
         public void startElement(String ns, String localname, String string2, Attributes atrbts) throws SAXException {
-            handler.startElement(ns, localname, string2, atrbts);
+            if (direct) {
+                // the root element of the format, then the elements of the record
+                depth++;
+                text.setLength(0);
+            } else {
+                handler.startElement(ns, localname, string2, atrbts);
+            }
+            if (writer != null) {
+                try {
+                    int pos = string2.indexOf(':');
+                    writer.writeStartElement(pos > 0 ? string2.substring(0, pos) : "", localname, ns);
+                    for (Map.Entry<String, String> prefixMapping : prefixMappings.entrySet()) {
+                        if (prefixMapping.getKey().isEmpty()) {
+                            writer.writeDefaultNamespace(prefixMapping.getValue());
+                        } else {
+                            writer.writeNamespace(prefixMapping.getKey(), prefixMapping.getValue());
+                        }
+                    }
+                    prefixMappings.clear();
+                    for (int i = 0; i < atrbts.getLength(); i++) {
+                        String qname = atrbts.getQName(i);
+                        if (qname.startsWith("xmlns")) {
+                            continue;
+                        }
+                        pos = qname.indexOf(':');
+                        writer.writeAttribute(pos > 0 ? qname.substring(0, pos) : "", atrbts.getURI(i),
+                                atrbts.getLocalName(i), atrbts.getValue(i));
+                    }
+                } catch (XMLStreamException e) {
+                    throw new SAXException(e);
+                }
+            }
         }
 
         @Override
         public void endElement(String ns, String localname, String string2) throws SAXException {
-            handler.endElement(ns, localname, string2);
+            if (direct) {
+                if (depth == 2) {
+                    String value = text.toString().trim();
+                    if (!value.isEmpty()) {
+                        values.computeIfAbsent(fieldName(ns, localname, string2), k -> new ArrayList<>(1)).add(value);
+                    }
+                }
+                depth--;
+            } else {
+                handler.endElement(ns, localname, string2);
+            }
+            if (writer != null) {
+                try {
+                    writer.writeEndElement();
+                } catch (XMLStreamException e) {
+                    throw new SAXException(e);
+                }
+            }
         }
 
         @Override
         public void characters(char[] chars, int i, int i1) throws SAXException {
-            handler.characters(chars, i, i1);
+            if (direct) {
+                if (depth == 2) {
+                    text.append(chars, i, i1);
+                }
+            } else {
+                handler.characters(chars, i, i1);
+            }
+            if (writer != null) {
+                try {
+                    writer.writeCharacters(chars, i, i1);
+                } catch (XMLStreamException e) {
+                    throw new SAXException(e);
+                }
+            }
+        }
+
+        /**
+         * Finish the harvested metadata XML.
+         *
+         * @return the deflated metadata XML in base64, as expected by a binary field
+         */
+        private String endMetadata() throws SAXException {
+            try {
+                writer.close();
+                deflater.close();
+                return Base64.getEncoder().encodeToString(metadata.toByteArray());
+            } catch (XMLStreamException | IOException e) {
+                throw new SAXException(e);
+            } finally {
+                writer = null;
+            }
+        }
+
+        /**
+         * Add fields to the JSON source. The source is copied token by token into a builder, which
+         * escapes the values, and fields of the source with the same names are replaced.
+         */
+        private String withFields(String content, Map<String, Object> fields) throws IOException {
+            XContentBuilder builder = XContentFactory.jsonBuilder();
+            try (XContentParser parser = JsonXContent.jsonXContent.createParser(content)) {
+                if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                    return content;
+                }
+                builder.startObject();
+                while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                    if (fields.containsKey(parser.currentName())) {
+                        parser.nextToken();
+                        parser.skipChildren();
+                    } else {
+                        builder.copyCurrentStructure(parser);
+                    }
+                }
+            }
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                builder.field(field.getKey(), field.getValue());
+            }
+            return builder.endObject().string();
         }
     }
 
@@ -3,6 +3,7 @@ package org.xbib.tools;
 import com.carrotsearch.hppc.cursors.ObjectCursor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.action.admin.indices.alias.IndicesAliasesAction;
 import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
@@ -15,24 +16,47 @@ import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
 import org.elasticsearch.action.admin.indices.get.GetIndexAction;
 import org.elasticsearch.action.admin.indices.get.GetIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.get.GetIndexResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.hash.MurmurHash3;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.sort.SortOrder;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.xbib.elasticsearch.helper.client.LongAdderIngestMetric;
+import org.xbib.util.DateUtil;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
 public abstract class TimewindowFeeder extends Feeder {
 
     private final static Logger logger = LogManager.getLogger(TimewindowFeeder.class.getSimpleName());
 
+    private final static String TOMBSTONE_SUFFIX = "_deleted";
+
+    private final static String TIMESTAMP_FIELD = "xbib:timestamp";
+
+    protected final static String SEQUENCE_FIELD = "xbib:sequence";
+
     protected abstract void setIndex(String index);
 
     protected abstract String getIndex();
@@ -123,6 +147,7 @@ public abstract class TimewindowFeeder extends Feeder {
         String concreteIndex = getConcreteIndex();
         if (!index.equals(concreteIndex)) {
             IndicesAliasesRequestBuilder requestBuilder = new IndicesAliasesRequestBuilder(ingest.client(), IndicesAliasesAction.INSTANCE);
+            List<String> previousIndices = new ArrayList<>();
             GetAliasesRequestBuilder getAliasesRequestBuilder = new GetAliasesRequestBuilder(ingest.client(), GetAliasesAction.INSTANCE);
             GetAliasesResponse getAliasesResponse = getAliasesRequestBuilder.setAliases(index).execute().actionGet();
             if (getAliasesResponse.getAliases().isEmpty()) {
@@ -135,6 +160,7 @@ public abstract class TimewindowFeeder extends Feeder {
             } else {
                 for (ObjectCursor<String> indexName : getAliasesResponse.getAliases().keys()) {
                     if (indexName.value.startsWith(index)) {
+                        previousIndices.add(indexName.value);
                         logger.info("switching alias {} from index {} to index {}", index, indexName.value, concreteIndex);
                         requestBuilder.removeAlias(indexName.value, index)
                                 .addAlias(concreteIndex, index);
@@ -146,6 +172,13 @@ public abstract class TimewindowFeeder extends Feeder {
                 }
             }
             requestBuilder.execute().actionGet();
+            if (settings.getAsBoolean("tombstones.enabled", false)) {
+                for (String previousIndex : previousIndices) {
+                    if (!previousIndex.equals(concreteIndex)) {
+                        updateTombstones(index, previousIndex, concreteIndex);
+                    }
+                }
+            }
             if (settings.getAsBoolean("retention.enabled", false)) {
                 performRetentionPolicy(
                         getIndex(),
@@ -156,6 +189,224 @@ public abstract class TimewindowFeeder extends Feeder {
         }
     }
 
+    /**
+     * Record the records that are in the previous index but not in the current index as tombstones
+     * in the side index {@code <index>_deleted}, with identifier, datestamp and sets, and remove
+     * the tombstones of records that are back in the current index. Both indices are read by scrolls
+     * in {@code _uid} order and compared by a merge, so no index is held in memory.
+     *
+     * @param index the base index name
+     * @param previousIndex the concrete index the alias pointed to before
+     * @param concreteIndex the concrete index the alias points to now
+     */
+    public void updateTombstones(String index, String previousIndex, String concreteIndex) {
+        if (ingest.client() == null) {
+            return;
+        }
+        Client client = ingest.client();
+        String tombstoneIndex = index + TOMBSTONE_SUFFIX;
+        String setField = settings.get("setfield", "xbib:set");
+        TimeValue keepAlive = settings.getAsTime("tombstones.keepalive", TimeValue.timeValueMinutes(5));
+        int size = settings.getAsInt("tombstones.size", 1000);
+        try {
+            createTombstoneIndex(client, tombstoneIndex);
+            // tombstones of records that came back
+            long revived = 0L;
+            UidScroll tombstones = new UidScroll(client, tombstoneIndex, null, keepAlive, size);
+            UidScroll current = new UidScroll(client, concreteIndex, null, keepAlive, size);
+            for (SearchHit hit : contained(tombstones, current)) {
+                ingest.delete(tombstoneIndex, hit.getType(), hit.getId());
+                revived++;
+            }
+            // tombstones of records that are gone
+            long deleted = 0L;
+            String timestamp = DateUtil.formatDateISO(new Date());
+            UidScroll previous = new UidScroll(client, previousIndex, setField, keepAlive, size);
+            current = new UidScroll(client, concreteIndex, null, keepAlive, size);
+            for (SearchHit hit : missing(previous, current)) {
+                XContentBuilder builder = jsonBuilder().startObject()
+                        .field(TIMESTAMP_FIELD, timestamp)
+                        .field(SEQUENCE_FIELD, sequenceOf(hit.getId()));
+                SearchHitField sets = hit.field(setField);
+                if (sets != null) {
+                    builder.field(setField, sets.getValues());
+                }
+                ingest.index(tombstoneIndex, hit.getType(), hit.getId(), builder.endObject().string());
+                deleted++;
+            }
+            logger.info("tombstones in {}: {} records deleted from {} to {}, {} records revived",
+                    tombstoneIndex, deleted, previousIndex, concreteIndex, revived);
+        } catch (IOException | RuntimeException e) {
+            // the alias switch is done, retention must still run
+            logger.error("tombstones not updated: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The sequence of a record, a hash of its identifier. It orders records with the same timestamp,
+     * so the OAI server can resume a list after such a record by a numeric range.
+     *
+     * @param identifier the identifier
+     * @return the sequence
+     */
+    protected static long sequenceOf(String identifier) {
+        byte[] b = identifier.getBytes(StandardCharsets.UTF_8);
+        return MurmurHash3.hash128(b, 0, b.length, 0L, new MurmurHash3.Hash128()).h1;
+    }
+
+    private void createTombstoneIndex(Client client, String tombstoneIndex) throws IOException {
+        if (client.admin().indices().prepareExists(tombstoneIndex).execute().actionGet().isExists()) {
+            return;
+        }
+        XContentBuilder mapping = jsonBuilder().startObject()
+                .startObject(getType())
+                .startObject("properties")
+                .startObject(TIMESTAMP_FIELD).field("type", "date").endObject()
+                .startObject(SEQUENCE_FIELD).field("type", "long").endObject()
+                .startObject(settings.get("setfield", "xbib:set"))
+                .field("type", "string").field("index", "not_analyzed").endObject()
+                .endObject()
+                .endObject()
+                .endObject();
+        client.admin().indices().prepareCreate(tombstoneIndex)
+                .addMapping(getType(), mapping)
+                .execute().actionGet();
+    }
+
+    /**
+     * The hits of the left scroll with a uid in the right scroll.
+     */
+    private static Iterable<SearchHit> contained(final UidScroll left, final UidScroll right) {
+        return () -> new MergeIterator(left, right, true);
+    }
+
+    /**
+     * The hits of the left scroll without a uid in the right scroll.
+     */
+    private static Iterable<SearchHit> missing(final UidScroll left, final UidScroll right) {
+        return () -> new MergeIterator(left, right, false);
+    }
+
+    /**
+     * The uid as sorted by Elasticsearch, which compares the UTF-8 bytes and not the UTF-16 chars.
+     */
+    private static BytesRef uidOf(SearchHit hit) {
+        return new BytesRef(hit.getType() + "#" + hit.getId());
+    }
+
+    private static class MergeIterator implements Iterator<SearchHit> {
+
+        private final UidScroll left;
+
+        private final UidScroll right;
+
+        private final boolean contained;
+
+        private SearchHit rightHit;
+
+        private SearchHit next;
+
+        MergeIterator(UidScroll left, UidScroll right, boolean contained) {
+            this.left = left;
+            this.right = right;
+            this.contained = contained;
+            this.rightHit = right.hasNext() ? right.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && left.hasNext()) {
+                SearchHit leftHit = left.next();
+                BytesRef uid = uidOf(leftHit);
+                while (rightHit != null && uidOf(rightHit).compareTo(uid) < 0) {
+                    rightHit = right.hasNext() ? right.next() : null;
+                }
+                boolean found = rightHit != null && uidOf(rightHit).equals(uid);
+                if (found == contained) {
+                    next = leftHit;
+                }
+            }
+            if (next == null) {
+                right.close();
+            }
+            return next != null;
+        }
+
+        @Override
+        public SearchHit next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SearchHit hit = next;
+            next = null;
+            return hit;
+        }
+    }
+
+    /**
+     * The hits of an index in {@code _uid} order, read by a scroll, without source.
+     */
+    private static class UidScroll implements Iterator<SearchHit> {
+
+        private final Client client;
+
+        private final TimeValue keepAlive;
+
+        private String scrollId;
+
+        private Iterator<SearchHit> hits;
+
+        UidScroll(Client client, String index, String field, TimeValue keepAlive, int size) {
+            this.client = client;
+            this.keepAlive = keepAlive;
+            if (!client.admin().indices().prepareExists(index).execute().actionGet().isExists()) {
+                this.hits = Collections.emptyIterator();
+                return;
+            }
+            SearchRequestBuilder searchRequestBuilder = client.prepareSearch(index)
+                    .setScroll(keepAlive)
+                    .setSize(size)
+                    .setFetchSource(false)
+                    .addSort("_uid", SortOrder.ASC);
+            if (field != null) {
+                searchRequestBuilder.addFieldDataField(field);
+            }
+            page(searchRequestBuilder.execute().actionGet());
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!hits.hasNext() && scrollId != null) {
+                page(client.prepareSearchScroll(scrollId).setScroll(keepAlive).execute().actionGet());
+            }
+            return hits.hasNext();
+        }
+
+        @Override
+        public SearchHit next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return hits.next();
+        }
+
+        void close() {
+            if (scrollId != null) {
+                client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+                scrollId = null;
+            }
+        }
+
+        private void page(SearchResponse response) {
+            SearchHit[] page = response.getHits().getHits();
+            this.hits = Arrays.asList(page).iterator();
+            this.scrollId = response.getScrollId();
+            if (page.length == 0) {
+                close();
+            }
+        }
+    }
+
     public void performRetentionPolicy(String index, String concreteIndex, int timestampdiff, int mintokeep) {
         if (ingest.client() == null) {
             return;
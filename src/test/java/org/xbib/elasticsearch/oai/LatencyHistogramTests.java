@@ -0,0 +1,48 @@
+package org.xbib.elasticsearch.oai;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class LatencyHistogramTests {
+
+    @Test
+    public void testEmpty() {
+        assertEquals(new LatencyHistogram().percentile(99.0), 0L);
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 0; i < 16; i++) {
+            histogram.record(i);
+        }
+        assertEquals(histogram.percentile(50.0), 7L);
+        assertEquals(histogram.percentile(100.0), 15L);
+    }
+
+    @Test
+    public void testPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 100000; i++) {
+            histogram.record(i);
+        }
+        assertWithin(histogram.percentile(50.0), 50000L);
+        assertWithin(histogram.percentile(99.0), 99000L);
+        assertWithin(histogram.percentile(100.0), 100000L);
+    }
+
+    @Test
+    public void testOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5L);
+        assertEquals(histogram.percentile(100.0), 0L);
+        histogram.record(Long.MAX_VALUE);
+        assertTrue(histogram.percentile(100.0) > 1L << 40);
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertTrue(actual >= expected && actual <= expected + expected / 16, actual + " not within " + expected);
+    }
+}
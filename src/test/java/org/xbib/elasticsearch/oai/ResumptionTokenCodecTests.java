@@ -0,0 +1,100 @@
+package org.xbib.elasticsearch.oai;
+
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+public class ResumptionTokenCodecTests {
+
+    private final ResumptionTokenCodec codec = new ResumptionTokenCodec("secret".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        OAICursor cursor = cursor().next(100, 1262304000000L, "record#oai:example.org:1");
+        OAICursor decoded = codec.decode(codec.encode(cursor));
+        assertEquals(decoded.getVerb(), "ListRecords");
+        assertEquals(decoded.getIndex(), "test");
+        assertNull(decoded.getType());
+        assertEquals(decoded.getFrom(), new Date(1230768000000L));
+        assertNull(decoded.getUntil());
+        assertEquals(decoded.getSet(), "physics");
+        assertEquals(decoded.getMetadataPrefix(), "oai_dc");
+        assertEquals(decoded.getSize(), 100);
+        assertEquals(decoded.getPosition(), 100L);
+        assertEquals(decoded.getDepth(), 1);
+        assertEquals(decoded.getLastTimestamp(), 1262304000000L);
+        assertEquals(decoded.getLastSequence(), OAICursor.MISSING_SEQUENCE);
+        assertEquals(decoded.getLastUid(), "record#oai:example.org:1");
+    }
+
+    @Test
+    public void testSameSortValues() throws Exception {
+        OAICursor first = codec.decode(codec.encode(cursor()
+                .next(2, 1262304000000L, 42L, Arrays.asList("record#1", "record#2"))));
+        assertEquals(first.getLastSequence(), 42L);
+        assertEquals(first.getLastUids(), Arrays.asList("record#1", "record#2"));
+        // a page of records with the same sort values only, the uids are carried along
+        OAICursor second = codec.decode(codec.encode(first
+                .next(1, 1262304000000L, 42L, Collections.singletonList("record#3"))));
+        assertEquals(second.getLastUids(), Arrays.asList("record#1", "record#2", "record#3"));
+        assertEquals(second.getLastUid(), "record#3");
+        // a page that ends with other sort values starts over
+        OAICursor third = second.next(2, 1262304000000L, 43L, Collections.singletonList("record#5"));
+        assertEquals(third.getLastUids(), Collections.singletonList("record#5"));
+        assertEquals(third.getPosition(), 5L);
+    }
+
+    @Test
+    public void testTamperedToken() {
+        byte[] b = Base64.getUrlDecoder().decode(codec.encode(cursor().next(100, 0L, "record#1")));
+        // move the cursor position
+        b[b.length / 2] ^= 1;
+        assertRejected(Base64.getUrlEncoder().withoutPadding().encodeToString(b));
+    }
+
+    @Test
+    public void testForeignSecret() {
+        ResumptionTokenCodec other = new ResumptionTokenCodec("other".getBytes(StandardCharsets.UTF_8));
+        assertRejected(other.encode(cursor().next(100, 0L, "record#1")));
+    }
+
+    @Test
+    public void testTruncatedToken() {
+        String token = codec.encode(cursor().next(100, 0L, "record#1"));
+        for (int length = 0; length < token.length(); length += 3) {
+            assertRejected(token.substring(0, length));
+        }
+    }
+
+    @Test
+    public void testMalformedToken() {
+        assertRejected("not a token!");
+    }
+
+    private void assertRejected(String token) {
+        try {
+            codec.decode(token);
+            fail("token accepted: " + token);
+        } catch (OAIServerException e) {
+            assertEquals(e.getCode(), "badResumptionToken");
+        }
+    }
+
+    private static OAICursor cursor() {
+        return new OAICursor()
+                .setVerb("ListRecords")
+                .setIndex("test")
+                .setFrom(new Date(1230768000000L))
+                .setSet("physics")
+                .setMetadataPrefix("oai_dc")
+                .setSize(100);
+    }
+}
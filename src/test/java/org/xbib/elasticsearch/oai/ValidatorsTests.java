@@ -0,0 +1,32 @@
+package org.xbib.elasticsearch.oai;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ValidatorsTests {
+
+    @Test
+    public void testETag() {
+        String etag = new Validators("1:2/verb=Identify").getETag();
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+        assertEquals(new Validators("1:2/verb=Identify").getETag(), etag);
+        assertNotEquals(new Validators("1:3/verb=Identify").getETag(), etag);
+    }
+
+    @Test
+    public void testNotModified() {
+        Validators validators = new Validators("1:2/verb=Identify");
+        String etag = validators.getETag();
+        assertTrue(validators.notModified(etag));
+        assertTrue(validators.notModified("W/" + etag));
+        assertTrue(validators.notModified("\"other\", " + etag));
+        assertTrue(validators.notModified("*"));
+        assertFalse(validators.notModified(null));
+        assertFalse(validators.notModified("\"other\""));
+        assertFalse(validators.notModified(new Validators("1:3/verb=Identify").getETag()));
+    }
+}
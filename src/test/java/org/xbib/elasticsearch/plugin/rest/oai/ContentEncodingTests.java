@@ -0,0 +1,57 @@
+package org.xbib.elasticsearch.plugin.rest.oai;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+public class ContentEncodingTests {
+
+    @Test
+    public void testNegotiate() {
+        assertNull(ContentEncoding.negotiate(null));
+        assertNull(ContentEncoding.negotiate("identity"));
+        assertEquals(ContentEncoding.negotiate("gzip"), ContentEncoding.GZIP);
+        assertEquals(ContentEncoding.negotiate("deflate, gzip"), ContentEncoding.GZIP);
+        assertEquals(ContentEncoding.negotiate("GZIP;q=0.5"), ContentEncoding.GZIP);
+        assertEquals(ContentEncoding.negotiate("x-gzip"), ContentEncoding.GZIP);
+        assertEquals(ContentEncoding.negotiate("*"), ContentEncoding.GZIP);
+        assertEquals(ContentEncoding.negotiate("deflate"), ContentEncoding.DEFLATE);
+        assertEquals(ContentEncoding.negotiate("gzip;q=0, deflate"), ContentEncoding.DEFLATE);
+        assertNull(ContentEncoding.negotiate("gzip;q=0"));
+    }
+
+    @Test
+    public void testEncoders() throws IOException {
+        byte[] content = "<OAI-PMH/>".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream encoder = ContentEncoding.encoder(ContentEncoding.GZIP, out, 6)) {
+            encoder.write(content);
+        }
+        assertEquals(read(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))), content);
+        out = new ByteArrayOutputStream();
+        try (OutputStream encoder = ContentEncoding.encoder(ContentEncoding.DEFLATE, out, 6)) {
+            encoder.write(content);
+        }
+        assertEquals(read(new InflaterInputStream(new ByteArrayInputStream(out.toByteArray()))), content);
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,286 @@
+package org.xbib.elasticsearch.plugin.rest.oai;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.rest.action.support.RestResponseListener;
+import org.elasticsearch.search.SearchHit;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.xbib.elasticsearch.oai.OAICursor;
+import org.xbib.elasticsearch.oai.OAIServerException;
+import org.xbib.elasticsearch.oai.ResumptionTokenCodec;
+import org.xbib.oai.OAIConstants;
+import org.xbib.xml.XSI;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+import javax.xml.stream.util.XMLEventConsumer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The former serializer of OAI responses, which emits every tag as an {@link XMLEvent} with a fresh {@link QName}
+ * and formats datestamps with Joda. Kept unchanged as the baseline of {@link ResponseSerializationBenchmark}.
+ */
+public class EventWriterResponseBuilder extends RestResponseListener<SearchResponse> implements OAIConstants {
+
+    private final static XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+    private final static XMLOutputFactory outputfactory  = XMLOutputFactory.newInstance();
+
+    private final static DateTimeFormatter formatter = ISODateTimeFormat.dateTimeNoMillis();
+
+    private final Settings settings;
+
+    private XMLEventConsumer consumer;
+
+    private String baseURL;
+
+    private Map<String, Object> parameters;
+
+    private OAICursor cursor;
+
+    private ResumptionTokenCodec tokenCodec;
+
+    private final BigArrays bigArrays;
+
+    public EventWriterResponseBuilder(Settings settings, RestChannel channel, BigArrays bigArrays) {
+        super(channel);
+        this.settings = settings;
+        this.bigArrays = bigArrays;
+    }
+
+    public EventWriterResponseBuilder setBaseURL(String baseURL) {
+        this.baseURL = baseURL;
+        return this;
+    }
+
+    public EventWriterResponseBuilder setParameters(Map<String, Object> parameters) {
+        this.parameters = parameters;
+        return this;
+    }
+
+    public EventWriterResponseBuilder setCursor(OAICursor cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    public EventWriterResponseBuilder setTokenCodec(ResumptionTokenCodec tokenCodec) {
+        this.tokenCodec = tokenCodec;
+        return this;
+    }
+
+    public void onError(OAIServerException e) {
+        ReleasableBytesStreamOutput out = new ReleasableBytesStreamOutput(bigArrays);
+        try {
+            setOutputStream(out);
+            beginDocument();
+            beginResponse(baseURL, parameters);
+            error(e.getCode(), e.getMessage());
+            endResponse();
+            endDocument();
+            channel.sendResponse(new StreamRestResponse(RestStatus.OK, StreamRestResponse.XML_CONTENT_TYPE, out));
+        } catch (Exception ex) {
+            out.close();
+            onFailure(ex);
+        }
+    }
+
+    protected Settings settings() {
+        return settings;
+    }
+
+    @Override
+    public RestResponse buildResponse(SearchResponse response) throws Exception {
+        ReleasableBytesStreamOutput out = new ReleasableBytesStreamOutput(bigArrays);
+        boolean success = false;
+        try {
+            RestResponse restResponse = buildResponse(response, out);
+            success = true;
+            return restResponse;
+        } finally {
+            if (!success) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Serialize a page record by record into recycled pages. The pages are handed to the
+     * HTTP layer without copying and are released after they have been written to the channel.
+     */
+    protected RestResponse buildResponse(SearchResponse response, ReleasableBytesStreamOutput out) throws Exception {
+        SearchHit[] hits = response.getHits().getHits();
+        setOutputStream(out);
+        beginDocument();
+        beginResponse(baseURL, parameters);
+        if (hits.length == 0 && !cursor.isResumed()) {
+            error("noRecordsMatch", "no records match");
+        } else {
+            beginElement(LIST_RECORDS);
+            for (SearchHit hit : hits) {
+                beginElement("record");
+                header(hit);
+                // TODO metadata
+                endElement("record");
+                flush();
+            }
+            // the query excludes all records before the cursor, so total hits count the remaining records
+            long remaining = response.getHits().getTotalHits();
+            if (hits.length > 0 && remaining > hits.length) {
+                SearchHit last = hits[hits.length - 1];
+                resumptionToken(cursor.next(hits.length, timestampOf(last), uidOf(last)), remaining);
+            } else if (cursor.isResumed()) {
+                resumptionToken(null, remaining);
+            }
+            endElement(LIST_RECORDS);
+        }
+        endResponse();
+        endDocument();
+        return new StreamRestResponse(RestStatus.OK, StreamRestResponse.XML_CONTENT_TYPE, out);
+    }
+
+    protected EventWriterResponseBuilder setOutputStream(OutputStream out) throws XMLStreamException {
+        this.consumer = outputfactory.createXMLEventWriter(out, "UTF-8");
+        return this;
+    }
+
+    protected EventWriterResponseBuilder beginDocument() throws XMLStreamException {
+        consumer.add(eventFactory.createStartDocument());
+        return this;
+    }
+
+    protected EventWriterResponseBuilder endDocument() throws XMLStreamException, IOException {
+        consumer.add(eventFactory.createEndDocument());
+        flush();
+        return this;
+    }
+
+    protected EventWriterResponseBuilder flush() throws XMLStreamException {
+        if (consumer instanceof XMLEventWriter) {
+            ((XMLEventWriter) consumer).flush();
+        }
+        return this;
+    }
+
+    protected EventWriterResponseBuilder beginElement(String name) throws XMLStreamException {
+        consumer.add(eventFactory.createStartElement(toQName(NS_URI, name), null, null));
+        return this;
+    }
+
+    protected EventWriterResponseBuilder endElement(String name) throws XMLStreamException {
+        consumer.add(eventFactory.createEndElement(toQName(NS_URI, name), null));
+        return this;
+    }
+
+    protected EventWriterResponseBuilder element(String name) throws XMLStreamException {
+        consumer.add(eventFactory.createStartElement(toQName(NS_URI, name), null, null));
+        consumer.add(eventFactory.createEndElement(toQName(NS_URI, name), null));
+        return this;
+    }
+
+    protected EventWriterResponseBuilder element(String name, String value) throws XMLStreamException {
+        consumer.add(eventFactory.createStartElement(toQName(NS_URI, name), null, null));
+        consumer.add(eventFactory.createCharacters(value));
+        consumer.add(eventFactory.createEndElement(toQName(NS_URI, name), null));
+        return this;
+    }
+
+    protected EventWriterResponseBuilder element(String name, Date value) throws XMLStreamException {
+        consumer.add(eventFactory.createStartElement(toQName(NS_URI, name), null, null));
+        consumer.add(eventFactory.createCharacters(formatter.print(value.getTime())));
+        consumer.add(eventFactory.createEndElement(toQName(NS_URI, name), null));
+        return this;
+    }
+
+    protected EventWriterResponseBuilder beginResponse(String baseURL, Map<String, Object> parameters) throws XMLStreamException {
+        consumer.add(eventFactory.createStartElement(toQName(NS_URI, "OAI-PMH"), null, null));
+        consumer.add(eventFactory.createNamespace(NS_URI));
+        consumer.add(eventFactory.createNamespace(XSI.NS_PREFIX, XSI.NS_URI));
+        consumer.add(eventFactory.createAttribute(XSI.NS_PREFIX, XSI.NS_URI,
+                "schemaLocation", "http://www.openarchives.org/OAI/2.0/ http://www.openarchives.org/OAI/2.0/OAI-PMH.xsd"));
+        element("responseDate", new Date());
+        request(parameters, baseURL);
+        return this;
+    }
+
+    protected EventWriterResponseBuilder endResponse() throws XMLStreamException {
+        consumer.add(eventFactory.createEndElement(toQName(NS_URI, "OAI-PMH"), null));
+        return this;
+    }
+
+    protected EventWriterResponseBuilder request(Map<String,Object> attrs, String baseURL) throws XMLStreamException {
+        consumer.add(eventFactory.createStartElement(toQName(NS_URI, REQUEST), null, null));
+        for (Map.Entry<String,Object> me : attrs.entrySet()) {
+            Object o = me.getValue();
+            if (!(o instanceof List)) {
+                o = Arrays.asList(o);
+            }
+            for (Object value : (List)o) {
+                consumer.add(eventFactory.createAttribute(me.getKey(),value.toString()));
+            }
+        }
+        consumer.add(eventFactory.createCharacters(baseURL));
+        consumer.add(eventFactory.createEndElement(toQName(NS_URI, REQUEST), null));
+        return this;
+    }
+
+    protected EventWriterResponseBuilder header(SearchHit hit) throws XMLStreamException {
+        beginElement("header");
+        element("identifier", hit.getId());
+        element("datestamp", new Date(timestampOf(hit)));
+        endElement("header");
+        return this;
+    }
+
+    protected EventWriterResponseBuilder resumptionToken(OAICursor next, long remaining) throws XMLStreamException {
+        consumer.add(eventFactory.createStartElement(toQName(NS_URI, "resumptionToken"), null, null));
+        consumer.add(eventFactory.createAttribute("completeListSize", Long.toString(cursor.getPosition() + remaining)));
+        consumer.add(eventFactory.createAttribute("cursor", Long.toString(cursor.getPosition())));
+        if (next != null) {
+            consumer.add(eventFactory.createCharacters(tokenCodec.encode(next)));
+        }
+        consumer.add(eventFactory.createEndElement(toQName(NS_URI, "resumptionToken"), null));
+        return this;
+    }
+
+    protected EventWriterResponseBuilder error(String code, String message) throws XMLStreamException {
+        consumer.add(eventFactory.createStartElement(toQName(NS_URI, "error"), null, null));
+        consumer.add(eventFactory.createAttribute("code", code));
+        consumer.add(eventFactory.createCharacters(message));
+        consumer.add(eventFactory.createEndElement(toQName(NS_URI, "error"), null));
+        return this;
+    }
+
+    protected long timestampOf(SearchHit hit) {
+        return ((Number) hit.getSortValues()[0]).longValue();
+    }
+
+    protected String uidOf(SearchHit hit) {
+        return hit.getType() + "#" + hit.getId();
+    }
+
+    protected QName toQName(String namespaceUri, String qname) {
+        int i = qname.indexOf(':');
+        if (i == -1) {
+            return new QName(namespaceUri, qname);
+        } else {
+            String prefix = qname.substring(0, i);
+            String localPart = qname.substring(i + 1);
+            return new QName(namespaceUri, localPart, prefix);
+        }
+    }
+}
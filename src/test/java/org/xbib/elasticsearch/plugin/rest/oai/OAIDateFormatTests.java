@@ -0,0 +1,39 @@
+package org.xbib.elasticsearch.plugin.rest.oai;
+
+import org.testng.annotations.Test;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+public class OAIDateFormatTests {
+
+    private final static DateTimeFormatter formatter =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'").withZone(ZoneOffset.UTC);
+
+    @Test
+    public void testFixedDates() {
+        assertEquals(format(0L), "1970-01-01T00:00:00Z");
+        assertEquals(format(951782400000L), "2000-02-29T00:00:00Z");
+        assertEquals(format(-2203891200000L), "1900-03-01T00:00:00Z");
+        assertEquals(format(1262303999999L), "2009-12-31T23:59:59Z");
+        assertEquals(format(-1L), "1969-12-31T23:59:59Z");
+    }
+
+    @Test
+    public void testRandomDates() {
+        Random random = new Random(0L);
+        long max = 4102444800000L;
+        for (int i = 0; i < 100000; i++) {
+            long millis = (long) ((random.nextDouble() * 2.0 - 1.0) * max);
+            assertEquals(format(millis), formatter.format(Instant.ofEpochMilli(millis)), "millis " + millis);
+        }
+    }
+
+    private static String format(long millis) {
+        return new String(OAIDateFormat.format(millis), 0, OAIDateFormat.LENGTH);
+    }
+}
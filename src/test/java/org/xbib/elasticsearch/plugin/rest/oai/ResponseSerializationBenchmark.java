@@ -0,0 +1,155 @@
+package org.xbib.elasticsearch.plugin.rest.oai;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchShardTarget;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.testng.annotations.Test;
+import org.xbib.elasticsearch.oai.OAICursor;
+import org.xbib.elasticsearch.oai.ResumptionTokenCodec;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Serializes a list page of synthetic search hits through {@link OAIResponseBuilder} and through the former
+ * event-based {@link EventWriterResponseBuilder}, and reports time and allocated bytes per record.
+ *
+ * Not part of the default test run, run it with {@code mvn test -Dtest=ResponseSerializationBenchmark}.
+ */
+public class ResponseSerializationBenchmark {
+
+    private final static Logger logger = LogManager.getLogger(ResponseSerializationBenchmark.class.getName());
+
+    private final static int RECORDS = 1000;
+
+    private final static int WARMUP = 200;
+
+    private final static int ROUNDS = 200;
+
+    private final static long START = 1262304000000L;
+
+    private final Settings settings = Settings.EMPTY;
+
+    private final ResumptionTokenCodec tokenCodec = new ResumptionTokenCodec("secret".getBytes(StandardCharsets.UTF_8));
+
+    private final Map<String, Object> parameters = Collections.singletonMap("verb", "ListIdentifiers");
+
+    private final SearchResponse response = page();
+
+    @Test
+    public void benchmark() throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            eventWriterPage();
+            streamWriterPage();
+        }
+        Result events = measure(true);
+        Result stream = measure(false);
+        logger.info("event writer:  {} ns/record, {} bytes allocated/record", events.nanos, events.bytes);
+        logger.info("stream writer: {} ns/record, {} bytes allocated/record", stream.nanos, stream.bytes);
+        if (events.bytes >= 0 && stream.bytes >= 0) {
+            assertTrue(stream.bytes < events.bytes, "stream writer allocates less than event writer");
+        }
+    }
+
+    private Result measure(boolean eventWriter) throws Exception {
+        long bytes = allocatedBytes();
+        long nanos = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            if (eventWriter) {
+                eventWriterPage();
+            } else {
+                streamWriterPage();
+            }
+        }
+        nanos = System.nanoTime() - nanos;
+        long allocated = allocatedBytes();
+        long records = (long) ROUNDS * RECORDS;
+        return new Result(nanos / records, bytes >= 0 && allocated >= 0 ? (allocated - bytes) / records : -1L);
+    }
+
+    private void eventWriterPage() throws Exception {
+        try (ReleasableBytesStreamOutput out = new ReleasableBytesStreamOutput(BigArrays.NON_RECYCLING_INSTANCE)) {
+            new EventWriterResponseBuilder(settings, null, BigArrays.NON_RECYCLING_INSTANCE)
+                    .setBaseURL("http://localhost:9200/_oai")
+                    .setParameters(parameters)
+                    .setTokenCodec(tokenCodec)
+                    .setCursor(cursor())
+                    .buildResponse(response, out);
+        }
+    }
+
+    private void streamWriterPage() throws Exception {
+        new OAIResponseBuilder(settings, null, BigArrays.NON_RECYCLING_INSTANCE)
+                .setBaseURL("http://localhost:9200/_oai")
+                .setParameters(parameters)
+                .setTokenCodec(tokenCodec)
+                .setCursor(cursor())
+                .renderPage(response)
+                .close();
+    }
+
+    private static OAICursor cursor() {
+        return new OAICursor()
+                .setVerb("ListIdentifiers")
+                .setMetadataPrefix("oai_dc")
+                .setSize(RECORDS);
+    }
+
+    /**
+     * A page of hits as returned by a list search, sorted by timestamp and uid, with more records to come.
+     */
+    private static SearchResponse page() {
+        InternalSearchHit[] hits = new InternalSearchHit[RECORDS];
+        SearchShardTarget shardTarget = new SearchShardTarget("node", "test", 0);
+        for (int i = 0; i < RECORDS; i++) {
+            String id = "oai:example.org:" + i;
+            InternalSearchHit hit = new InternalSearchHit(i, id, new StringText("record"),
+                    new HashMap<String, SearchHitField>());
+            hit.sortValues(new Object[]{START + i * 1000L, (long) i, "record#" + id});
+            hit.shard(shardTarget);
+            hits[i] = hit;
+        }
+        InternalSearchHits searchHits = new InternalSearchHits(hits, 10L * RECORDS, 0.0f);
+        return new SearchResponse(new InternalSearchResponse(searchHits, null, null, false, null),
+                null, 1, 1, 1L, ShardSearchFailure.EMPTY_ARRAY);
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1L;
+    }
+
+    private static class Result {
+
+        private final long nanos;
+
+        private final long bytes;
+
+        Result(long nanos, long bytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+}